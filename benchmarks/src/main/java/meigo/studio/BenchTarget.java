@@ -0,0 +1,38 @@
+package meigo.studio;
+
+import java.util.List;
+
+import php.runtime.Memory;
+
+/**
+ * Библиотечный класс для WrapperCallBenchmark: по методу на каждую метку SUMMARY.
+ * Тела минимальные, чтобы в замерах оставалась только стоимость вызова и преобразований.
+ */
+public final class BenchTarget {
+    private BenchTarget() {
+    }
+
+    public static String string(String v) {
+        return v;
+    }
+
+    public static int integer(int v) {
+        return v + 1;
+    }
+
+    public static long lng(long v) {
+        return v + 1;
+    }
+
+    public static boolean bool(boolean v) {
+        return !v;
+    }
+
+    public static List<Object> list(List<Object> v) {
+        return v;
+    }
+
+    public static Memory any(Memory v) {
+        return v;
+    }
+}
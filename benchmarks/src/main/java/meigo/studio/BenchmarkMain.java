@@ -0,0 +1,30 @@
+package meigo.studio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Запуск JMH с результатами в JSON (jmh-result.json), чтобы их можно было сравнивать между версиями.
+ * Принимает обычные аргументы JMH: свои -rf/-rff заменяют значения по умолчанию,
+ * например BenchmarkMain ScanBenchmark -p classes=1000.
+ */
+public final class BenchmarkMain {
+    static final String DEFAULT_RESULT = "jmh-result.json";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> argv = new ArrayList<>(Arrays.asList(args));
+        if (!argv.contains("-rf")) {
+            argv.add("-rf");
+            argv.add("json");
+        }
+        if (!argv.contains("-rff")) {
+            argv.add("-rff");
+            argv.add(DEFAULT_RESULT);
+        }
+        org.openjdk.jmh.Main.main(argv.toArray(new String[0]));
+    }
+}
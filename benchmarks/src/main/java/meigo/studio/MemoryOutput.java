@@ -0,0 +1,50 @@
+package meigo.studio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BundleOutput в памяти: сохраняет только классы и загружает их своим загрузчиком.
+ * PHP-заглушки и исходники отбрасываются (исходники перехватывает WrapperCompiler).
+ */
+final class MemoryOutput implements BundleOutput {
+    private final Map<String, byte[]> classes = new HashMap<>();
+
+    @Override
+    public String writePhp(String path, String text) {
+        return path;
+    }
+
+    @Override
+    public String writeSource(String path, String text) {
+        return path;
+    }
+
+    @Override
+    public String writeClass(String path, byte[] bytes) {
+        classes.put(path, bytes);
+        return path;
+    }
+
+    @Override
+    public void finish(String extensionClass) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** Загрузчик записанных классов поверх parent */
+    ClassLoader loader(ClassLoader parent) {
+        return new ClassLoader(parent) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] b = classes.get(name.replace('.', '/') + ".class");
+                if (b == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, b, 0, b.length);
+            }
+        };
+    }
+}
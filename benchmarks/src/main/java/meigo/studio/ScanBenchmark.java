@@ -0,0 +1,115 @@
+package meigo.studio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Скорость анализа и генерации на синтетических библиотеках из 1k, 10k и 50k классов.
+ * Счётчик classes — классов в секунду; сам score — прогонов в секунду.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int classes;
+
+    private File jarFile;
+    private JarReader jar;
+    private File outDir;
+    private PrintStream quiet;
+
+    /** Обработанные классы; JMH выводит их как скорость (classes/s) */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long classes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            classes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        jarFile = SyntheticJars.create(classes);
+        jar = new JarReader(jarFile);
+        outDir = Files.createTempDirectory("jtj-bench").toFile();
+        quiet = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jar.close();
+        jarFile.delete();
+        delete(outDir);
+    }
+
+    /** Только анализ: список классов, разбор заголовков и методов */
+    @Benchmark
+    public List<?> analyze(Counters counters) throws IOException {
+        ClassIndex index = new ClassIndex(ClassIndex.jarSource(jar), ClassIndex.systemSource());
+        List<Main.ClassResult> results = Main.analyzeClasses(jar, index, Main.listClassNames(jar), 1, null);
+        counters.classes += results.size();
+        return results;
+    }
+
+    /** Полная конвертация с Java-исходниками обёрток (--backend=source) */
+    @Benchmark
+    public void convertSource(Counters counters) throws IOException {
+        convert(false, counters);
+    }
+
+    /** Полная конвертация с обёртками-классами (--backend=bytecode) */
+    @Benchmark
+    public void convertBytecode(Counters counters) throws IOException {
+        convert(true, counters);
+    }
+
+    private void convert(boolean bytecode, Counters counters) throws IOException {
+        Options options = new Options();
+        options.bytecode = bytecode;
+        ClassIndex index = new ClassIndex(ClassIndex.jarSource(jar), ClassIndex.systemSource());
+        Main.convert(jar, jarFile.getPath(), index, Collections.<File>emptyList(), outDir, options, quiet);
+        counters.classes += classes;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,79 @@
+package meigo.studio;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Синтетические библиотеки для ScanBenchmark: count классов synthetic/pN/CN, собранных ClassFileWriter.
+ * В каждом классе — по методу на каждую метку SUMMARY (STRING, INT, LONG, BOOL, LIST, ANY, VOID),
+ * перегрузка, конструктор, нестатические, приватный и неподдерживаемый методы.
+ */
+final class SyntheticJars {
+    private static final int CLASSES_PER_PACKAGE = 500;
+
+    private SyntheticJars() {
+    }
+
+    /** Временный jar из count классов; удаляется при выходе из JVM */
+    static File create(int count) throws IOException {
+        File file = File.createTempFile("jtj-synthetic-" + count + "-", ".jar");
+        file.deleteOnExit();
+        try (JarOutputStream jar = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (int i = 0; i < count; i++) {
+                String name = "synthetic/p" + (i / CLASSES_PER_PACKAGE) + "/C" + i;
+                jar.putNextEntry(new JarEntry(name + ".class"));
+                jar.write(classBytes(name));
+                jar.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    static byte[] classBytes(String name) {
+        ClassFileWriter cw = new ClassFileWriter(ClassFileWriter.ACC_PUBLIC, name, "java/lang/Object");
+        ClassFileWriter.Code init = cw.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        init.load('L', 0);
+        init.invoke(ClassFileWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.returnValue('V');
+
+        int ps = ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC;
+        method(cw, ps, "string", "(Ljava/lang/String;)Ljava/lang/String;");
+        method(cw, ps, "string", "(Ljava/lang/String;I)Ljava/lang/String;");
+        method(cw, ps, "integer", "(II)I");
+        method(cw, ps, "lng", "(J)J");
+        method(cw, ps, "bool", "(Z)Z");
+        method(cw, ps, "list", "(Ljava/util/List;)Ljava/util/List;");
+        method(cw, ps, "any", "(Lphp/runtime/Memory;)Lphp/runtime/Memory;");
+        method(cw, ps, "log", "(Ljava/lang/String;)V");
+        method(cw, ClassFileWriter.ACC_PUBLIC, "get", "()J");
+        method(cw, ClassFileWriter.ACC_PUBLIC, "set", "(J)V");
+        method(cw, ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC, "hidden", "()I");
+        method(cw, ps, "date", "()Ljava/util/Date;");
+        return cw.toByteArray();
+    }
+
+    // тело — значение по умолчанию для типа результата
+    private static void method(ClassFileWriter cw, int access, String name, String desc) {
+        ClassFileWriter.Code c = cw.method(access, name, desc);
+        char r = ClassFileReader.returnType(desc).charAt(0);
+        switch (r) {
+            case 'V':
+                break;
+            case 'J':
+                c.lconst(0);
+                break;
+            case 'L':
+            case '[':
+                c.op(ClassFileWriter.ACONST_NULL, 1);
+                break;
+            default:
+                c.iconst(0);
+                break;
+        }
+        c.returnValue(r);
+    }
+}
@@ -0,0 +1,232 @@
+package meigo.studio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import php.runtime.Memory;
+import php.runtime.env.Environment;
+import php.runtime.memory.ArrayMemory;
+import php.runtime.memory.LongMemory;
+import php.runtime.memory.StringMemory;
+
+/**
+ * Стоимость вызова через сгенерированную обёртку против прямого вызова Java-метода,
+ * по каждой метке SUMMARY (STRING, INT, LONG, BOOL, LIST, ANY).
+ *
+ * Обёртки BenchTarget генерируются в setup тем же кодом, что и в конвертере (--backend=bytecode
+ * или --backend=source через WrapperCompiler), и вызываются через MethodHandle, как их вызывал бы
+ * JPHP: (Environment env, Memory... args). xxxDirect — тот же метод BenchTarget напрямую.
+ * stringBatch — stringBatch (--batch-calls) на BATCH наборов аргументов, время на один элемент.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WrapperCallBenchmark {
+    private static final MethodType WRAPPER = MethodType.methodType(Memory.class, Environment.class, Memory[].class);
+    private static final int BATCH = 100;
+
+    // аргументы прямых вызовов
+    private String string;
+    private int integer;
+    private long lng;
+    private boolean bool;
+    private List<Object> list;
+    private Memory any;
+
+    // те же значения для обёрток
+    private Memory[] stringArgs;
+    private Memory[] integerArgs;
+    private Memory[] lngArgs;
+    private Memory[] boolArgs;
+    private Memory[] listArgs;
+    private Memory[] anyArgs;
+    private Memory[] stringBatchArgs;
+
+    /** Обёртки одного бэкенда; параметр backend есть только у xxxWrapper */
+    @State(Scope.Thread)
+    public static class Wrappers {
+        @Param({"bytecode", "source"})
+        public String backend;
+
+        MethodHandle string;
+        MethodHandle integer;
+        MethodHandle lng;
+        MethodHandle bool;
+        MethodHandle list;
+        MethodHandle any;
+        MethodHandle stringBatch;
+
+        @Setup
+        public void setup() throws Exception {
+            Class<?> wrapper = generate("bytecode".equals(backend));
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            string = lookup.findStatic(wrapper, "string", WRAPPER);
+            integer = lookup.findStatic(wrapper, "integer", WRAPPER);
+            lng = lookup.findStatic(wrapper, "lng", WRAPPER);
+            bool = lookup.findStatic(wrapper, "bool", WRAPPER);
+            list = lookup.findStatic(wrapper, "list", WRAPPER);
+            any = lookup.findStatic(wrapper, "any", WRAPPER);
+            stringBatch = lookup.findStatic(wrapper, "stringBatch", WRAPPER);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        string = "hello";
+        integer = 41;
+        lng = 41L;
+        bool = true;
+        list = new ArrayList<>(Arrays.<Object>asList("a", 1L, "c"));
+        any = new StringMemory("any");
+
+        ArrayMemory array = new ArrayMemory();
+        array.add(new StringMemory("a"));
+        array.add(new LongMemory(1));
+        array.add(new StringMemory("c"));
+        stringArgs = new Memory[]{new StringMemory(string)};
+        integerArgs = new Memory[]{new LongMemory(integer)};
+        lngArgs = new Memory[]{new LongMemory(lng)};
+        boolArgs = new Memory[]{Memory.TRUE};
+        listArgs = new Memory[]{array};
+        anyArgs = new Memory[]{any};
+        ArrayMemory tuples = new ArrayMemory();
+        for (int i = 0; i < BATCH; i++) {
+            tuples.add(new StringMemory(string + i));
+        }
+        stringBatchArgs = new Memory[]{tuples};
+    }
+
+    /**
+     * Генерирует обёртку BenchTarget и JTJ.runtime в памяти и загружает её.
+     */
+    static Class<?> generate(boolean bytecode) throws IOException, URISyntaxException {
+        String name = BenchTarget.class.getName();
+        byte[] bytes;
+        try (InputStream in = BenchTarget.class.getResourceAsStream("BenchTarget.class")) {
+            bytes = ClassFileReader.readAll(in);
+        }
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        Main.ClassResult r = Main.analyzeClass(new ClassIndex(ClassIndex.systemSource()), name, bytes, null);
+
+        MemoryOutput classes = new MemoryOutput();
+        BundleOutput output = classes;
+        if (!bytecode) {
+            output = new WrapperCompiler(classes, Arrays.asList(location(BenchTarget.class), location(Memory.class)), quiet);
+        }
+        Options options = new Options();
+        options.bytecode = bytecode;
+        if (bytecode) {
+            BytecodeWrappers.writeWrapper(name, r.methods, true, output, quiet);
+        } else {
+            Main.writeJavaWrapper(name, r.methods, null, true, output, quiet);
+        }
+        Main.finishWrappers(Collections.singletonList(name), options, output, quiet);
+        try {
+            return classes.loader(BenchTarget.class.getClassLoader()).loadClass("JTJ." + name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("обёртка BenchTarget не сгенерирована (" + options.bytecode + ")", e);
+        }
+    }
+
+    private static File location(Class<?> c) throws URISyntaxException {
+        return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    @Benchmark
+    public String stringDirect() {
+        return BenchTarget.string(string);
+    }
+
+    @Benchmark
+    public Memory stringWrapper(Wrappers w) throws Throwable {
+        return (Memory) w.string.invokeExact((Environment) null, stringArgs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Memory stringBatch(Wrappers w) throws Throwable {
+        return (Memory) w.stringBatch.invokeExact((Environment) null, stringBatchArgs);
+    }
+
+    @Benchmark
+    public int integerDirect() {
+        return BenchTarget.integer(integer);
+    }
+
+    @Benchmark
+    public Memory integerWrapper(Wrappers w) throws Throwable {
+        return (Memory) w.integer.invokeExact((Environment) null, integerArgs);
+    }
+
+    @Benchmark
+    public long lngDirect() {
+        return BenchTarget.lng(lng);
+    }
+
+    @Benchmark
+    public Memory lngWrapper(Wrappers w) throws Throwable {
+        return (Memory) w.lng.invokeExact((Environment) null, lngArgs);
+    }
+
+    @Benchmark
+    public boolean boolDirect() {
+        return BenchTarget.bool(bool);
+    }
+
+    @Benchmark
+    public Memory boolWrapper(Wrappers w) throws Throwable {
+        return (Memory) w.bool.invokeExact((Environment) null, boolArgs);
+    }
+
+    @Benchmark
+    public List<Object> listDirect() {
+        return BenchTarget.list(list);
+    }
+
+    @Benchmark
+    public Memory listWrapper(Wrappers w) throws Throwable {
+        return (Memory) w.list.invokeExact((Environment) null, listArgs);
+    }
+
+    @Benchmark
+    public Memory anyDirect() {
+        return BenchTarget.any(any);
+    }
+
+    @Benchmark
+    public Memory anyWrapper(Wrappers w) throws Throwable {
+        return (Memory) w.any.invokeExact((Environment) null, anyArgs);
+    }
+}
@@ -0,0 +1,141 @@
+package meigo.studio;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Пакетный режим: несколько библиотек в одной JVM.
+ * Все jar-файлы открываются один раз и образуют общий ClassIndex, поэтому типы
+ * из одной библиотеки видны при анализе другой. Каждая библиотека конвертируется
+ * в свою папку out/<имя jar>/ (sdk/, tmp/ и convert.log), до --jobs библиотек одновременно.
+ */
+final class BatchConverter {
+    private BatchConverter() {
+    }
+
+    static void run(Options options) throws IOException {
+        List<File> jarFiles = collectJars(options.batch);
+        if (jarFiles.isEmpty()) {
+            System.out.println("Не найдено ни одной библиотеки для анализа: " + options.batch);
+            System.exit(1);
+        }
+        System.out.println("Пакетный режим: " + jarFiles.size() + " библиотек -> " + options.outDir.getPath());
+
+        List<JarReader> jars = new ArrayList<>(jarFiles.size());
+        try {
+            // 1) Общий индекс классов по всем библиотекам, затем JDK
+            ClassIndex.ByteSource[] sources = new ClassIndex.ByteSource[jarFiles.size() + 1];
+            for (int i = 0; i < jarFiles.size(); i++) {
+                JarReader jar = new JarReader(jarFiles.get(i));
+                jars.add(jar);
+                sources[i] = ClassIndex.jarSource(jar);
+            }
+            sources[jarFiles.size()] = ClassIndex.systemSource();
+            final ClassIndex index = new ClassIndex(sources);
+
+            // 2) Конвертация библиотек параллельно, каждая в свою папку
+            int jobs = Math.min(options.jobs, jars.size());
+            ExecutorService pool = Executors.newFixedThreadPool(jobs, r -> {
+                Thread t = new Thread(r, "jtj-batch");
+                t.setDaemon(true);
+                return t;
+            });
+            int failed = 0;
+            try {
+                List<Future<?>> futures = new ArrayList<>(jars.size());
+                Set<String> usedNames = new LinkedHashSet<>();
+                for (int i = 0; i < jars.size(); i++) {
+                    final JarReader jar = jars.get(i);
+                    final File jarFile = jarFiles.get(i);
+                    final File outRoot = new File(options.outDir, bundleName(jarFile, usedNames));
+                    futures.add(pool.submit(() -> {
+                        // обёртки одной библиотеки могут ссылаться на типы из другой
+                        convertOne(jar, jarFile, index, jarFiles, outRoot, options);
+                        return null;
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        failed++;
+                        System.out.println("Ошибка: " + jarFiles.get(i).getPath() + ": " + e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("пакетная конвертация прервана", e);
+            } finally {
+                pool.shutdownNow();
+            }
+            System.out.println("Готово: " + (jars.size() - failed) + " из " + jars.size());
+            if (failed > 0) {
+                System.exit(1);
+            }
+        } finally {
+            for (JarReader jar : jars) {
+                jar.close();
+            }
+        }
+    }
+
+    private static void convertOne(JarReader jar, File jarFile, ClassIndex index, List<File> libraries,
+                                   File outRoot, Options options) throws IOException {
+        outRoot.mkdirs();
+        try (PrintStream log = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(new File(outRoot, "convert.log"))), false, "UTF-8")) {
+            log.println("Работаем с библиотекой: " + jarFile.getPath());
+            Main.convert(jar, jarFile.getPath(), index, libraries, outRoot, options, log);
+        }
+        synchronized (System.out) {
+            System.out.println("  " + jarFile.getName() + " -> " + outRoot.getPath());
+        }
+    }
+
+    /**
+     * Разворачивает --batch: список путей через path.separator, папки — все *.jar внутри.
+     */
+    static List<File> collectJars(String spec) {
+        Set<File> result = new LinkedHashSet<>();
+        String sep = System.getProperty("path.separator");
+        for (String part : Pattern.compile(Pattern.quote(sep)).split(spec)) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            File f = new File(part);
+            if (f.isDirectory()) {
+                File[] inDir = f.listFiles((d, name) -> name.toLowerCase().endsWith(".jar"));
+                if (inDir != null) {
+                    Arrays.sort(inDir);
+                    result.addAll(Arrays.asList(inDir));
+                }
+            } else if (f.isFile()) {
+                result.add(f);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    // одинаковые имена jar из разных папок не должны писать в одну папку
+    private static String bundleName(File jarFile, Set<String> usedNames) {
+        String base = jarFile.getName().replaceAll("(?i)\\.jar$", "");
+        String name = base;
+        for (int i = 2; !usedNames.add(name); i++) {
+            name = base + "-" + i;
+        }
+        return name;
+    }
+}
@@ -0,0 +1,187 @@
+package meigo.studio;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Куда пишутся результаты конвертации. Пути относительные и всегда через '/':
+ * PHP-заглушки — от корня sdk (com/example/Foo.php), Java-исходники и классы — от корня
+ * исходников/классов (JTJ/com/example/Foo.java, JTJ/com/example/Foo.class).
+ */
+interface BundleOutput extends Closeable {
+    /** Пишет PHP-заглушку, возвращает путь для лога */
+    String writePhp(String path, String text) throws IOException;
+
+    /** Пишет Java-исходник обёртки или Extension, возвращает путь для лога */
+    String writeSource(String path, String text) throws IOException;
+
+    /** Пишет скомпилированный класс обёртки, возвращает путь для лога */
+    String writeClass(String path, byte[] bytes) throws IOException;
+
+    /** Вызывается после записи всех классов; extensionClass — полное имя Extension-класса */
+    void finish(String extensionClass) throws IOException;
+
+    /**
+     * Россыпь файлов: sdk/, tmp/javaprepare/ (исходники) и tmp/javaprepare/classes/
+     * в папке outRoot (null — текущая папка).
+     */
+    final class Directory implements BundleOutput {
+        private final File sdkRoot;
+        private final File sourceRoot;
+        private final File classesRoot;
+
+        Directory(File outRoot) {
+            this.sdkRoot     = Main.outFile(outRoot, "sdk");
+            this.sourceRoot  = Main.outFile(outRoot, "tmp/javaprepare");
+            this.classesRoot = Main.outFile(outRoot, "tmp/javaprepare/classes");
+        }
+
+        @Override
+        public String writePhp(String path, String text) throws IOException {
+            return write(sdkRoot, path, text);
+        }
+
+        @Override
+        public String writeSource(String path, String text) throws IOException {
+            return write(sourceRoot, path, text);
+        }
+
+        @Override
+        public String writeClass(String path, byte[] bytes) throws IOException {
+            File file = new File(classesRoot, path.replace('/', File.separatorChar));
+            file.getParentFile().mkdirs();
+            try (OutputStream os = new FileOutputStream(file)) {
+                os.write(bytes);
+            }
+            return file.getPath();
+        }
+
+        private static String write(File root, String path, String text) throws IOException {
+            File file = new File(root, path.replace('/', File.separatorChar));
+            file.getParentFile().mkdirs();
+            // UTF-8, как и в .dnbundle, а не кодировка платформы
+            try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                    StandardCharsets.UTF_8))) {
+                w.write(text);
+            }
+            return file.getPath();
+        }
+
+        @Override
+        public void finish(String extensionClass) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Один .dnbundle (zip), который пишется потоково через единственный буферизированный поток:
+     * <pre>
+     * .resource          — метаданные: имя, версия, описание и класс Extension
+     * sdk/...            — PHP-заглушки
+     * src/JTJ/...        — исходники обёрток и Extension-класса
+     * classes/JTJ/...    — скомпилированные обёртки (--compile или --backend=bytecode)
+     * libs/&lt;lib&gt;.jar — исходная библиотека
+     * </pre>
+     */
+    final class Zip implements BundleOutput {
+        private final File bundleFile;
+        private final File libraryJar;
+        private final ZipOutputStream zip;
+        private boolean finished;
+
+        Zip(File bundleFile, File libraryJar) throws IOException {
+            this.bundleFile = bundleFile;
+            this.libraryJar = libraryJar;
+            File parent = bundleFile.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(bundleFile), 1 << 16));
+        }
+
+        @Override
+        public synchronized String writePhp(String path, String text) throws IOException {
+            return put("sdk/" + path, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public synchronized String writeSource(String path, String text) throws IOException {
+            return put("src/" + path, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public synchronized String writeClass(String path, byte[] bytes) throws IOException {
+            return put("classes/" + path, bytes);
+        }
+
+        @Override
+        public synchronized void finish(String extensionClass) throws IOException {
+            String name = libraryJar.getName().replaceAll("(?i)\\.jar$", "");
+            StringBuilder res = new StringBuilder();
+            res.append("name=").append(name).append('\n');
+            res.append("version=1.0\n");
+            res.append("description=JavaToJPHP bundle for ").append(libraryJar.getName()).append('\n');
+            res.append("extension=").append(extensionClass).append('\n');
+            put(".resource", res.toString().getBytes(StandardCharsets.UTF_8));
+
+            // библиотеку кладём в архив без сжатия (STORED): jar уже сжат, пережимать его — пустая
+            // трата CPU, а из STORED-записи jar читается без распаковки. Размер и CRC у такой записи
+            // пишутся в заголовок до данных, поэтому файл читается дважды
+            byte[] buf = new byte[1 << 16];
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try (InputStream in = new FileInputStream(libraryJar)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    crc.update(buf, 0, n);
+                    size += n;
+                }
+            }
+            ZipEntry lib = new ZipEntry("libs/" + libraryJar.getName());
+            lib.setMethod(ZipEntry.STORED);
+            lib.setSize(size);
+            lib.setCompressedSize(size);
+            lib.setCrc(crc.getValue());
+            zip.putNextEntry(lib);
+            try (InputStream in = new FileInputStream(libraryJar)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    zip.write(buf, 0, n);
+                }
+            }
+            zip.closeEntry();
+            finished = true;
+        }
+
+        private String put(String entryName, byte[] data) throws IOException {
+            zip.putNextEntry(new ZipEntry(entryName));
+            zip.write(data);
+            zip.closeEntry();
+            return bundleFile.getPath() + "!/" + entryName;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            zip.close();
+            // конвертация упала до finish(): недописанный бандл не должен выглядеть готовым
+            if (!finished) {
+                bundleFile.delete();
+            }
+        }
+    }
+}
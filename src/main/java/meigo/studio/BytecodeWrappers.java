@@ -0,0 +1,303 @@
+package meigo.studio;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Второй бэкенд обёрток (--backend=bytecode): BaseObject-обёртки и Extension-класс
+ * пишутся сразу как .class, без Java-исходников и javac.
+ *
+ * Классы те же, что дают writeJavaWrapper/writeExtension: те же @Namespace и @Signature,
+ * те же конструкторы и те же преобразования Memory (Marshalling), методы делегируют
+ * в исходный класс. Время генерации линейно по числу методов.
+ */
+final class BytecodeWrappers {
+    static final String BASE_OBJECT  = "php/runtime/lang/BaseObject";
+    static final String ENVIRONMENT  = "Lphp/runtime/env/Environment;";
+    static final String CLASS_ENTITY = "Lphp/runtime/reflection/ClassEntity;";
+    static final String NAMESPACE    = "Lphp/runtime/annotation/Reflection$Namespace;";
+    static final String SIGNATURE    = "Lphp/runtime/annotation/Reflection$Signature;";
+    static final String EXTENSION    = "php/runtime/ext/support/Extension";
+    static final String STATUS       = "php/runtime/ext/support/Extension$Status";
+    static final String COMPILE_SCOPE = "Lphp/runtime/env/CompileScope;";
+
+    private BytecodeWrappers() {
+    }
+
+    /**
+     * Внутреннее имя обёртки: com.example.Foo -> JTJ/com/example/Foo
+     */
+    static String wrapperName(String fullClass) {
+        return "JTJ/" + fullClass.replace('.', '/');
+    }
+
+    /**
+     * Пишет обёртку одного класса в output (JTJ/.../Foo.class);
+     * batchCalls — добавить nameBatch к статическим методам (Main.batchName).
+     */
+    static void writeWrapper(String fullClass, List<Main.MethodInfo> methods, boolean batchCalls,
+                             BundleOutput output, PrintStream out) throws IOException {
+        String owner = fullClass.replace('.', '/');
+        int dot = fullClass.lastIndexOf('.');
+        String pkg = dot < 0 ? "" : fullClass.substring(0, dot);
+
+        ClassFileWriter cw = new ClassFileWriter(ClassFileWriter.ACC_PUBLIC, wrapperName(fullClass), BASE_OBJECT);
+        cw.annotate(NAMESPACE, "value", pkg.replace('.', '\\'));
+        writeConstructors(cw);
+
+        // класс с публичным конструктором держит созданный через __construct объект
+        List<Main.MethodInfo> wrapped = Main.wrappable(fullClass, methods, true, out);
+        if (Main.isConstructible(wrapped)) {
+            cw.implement(Marshalling.HOLDER);
+            cw.field(ClassFileWriter.ACC_PRIVATE, "instance", "L" + owner + ";");
+            ClassFileWriter.Code unwrap = cw.method(ClassFileWriter.ACC_PUBLIC, "unwrap", "()Ljava/lang/Object;");
+            unwrap.load('L', 0);
+            unwrap.field(ClassFileWriter.GETFIELD, cw.name(), "instance", "L" + owner + ";");
+            unwrap.returnValue('L');
+        }
+
+        Set<String> names = Overloads.byName(methods).keySet();
+        for (Map.Entry<String, List<Main.MethodInfo>> e : Overloads.byName(wrapped).entrySet()) {
+            String name = e.getKey();
+            List<Main.MethodInfo> group = e.getValue();
+            boolean isStatic = group.get(0).isStatic;
+            ClassFileWriter.Code c = cw.method(ClassFileWriter.ACC_PUBLIC | (isStatic ? ClassFileWriter.ACC_STATIC : 0)
+                    | ClassFileWriter.ACC_VARARGS, name, Marshalling.WRAPPER_DESC);
+            c.annotate(SIGNATURE);
+            // env и args: слоты 0 и 1 у статического метода, 1 и 2 — после this
+            int env = isStatic ? 0 : 1;
+            dispatch(c, cw.name(), owner, name, Overloads.plan(group), env);
+            String batch = batchCalls && isStatic ? Main.batchName(name, names) : null;
+            if (batch != null) {
+                batch(cw, name, batch);
+            }
+        }
+
+        String path = cw.name() + ".class";
+        out.println("Generated wrapper class: " + output.writeClass(path, cw.toByteArray()));
+    }
+
+    /**
+     * Выбор перегрузки — то же, что switch в исходнике обёртки:
+     * tableswitch по args.length, внутри — проверки масок Marshal.typeBit(args[i]).
+     */
+    private static void dispatch(ClassFileWriter.Code c, String wrapper, String owner, String name,
+                                 List<Overloads.Arity> plan, int env) {
+        int low = plan.get(0).count;
+        int high = plan.get(plan.size() - 1).count;
+        ClassFileWriter.Label dflt = new ClassFileWriter.Label();
+        ClassFileWriter.Label[] targets = new ClassFileWriter.Label[high - low + 1];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = dflt;
+        }
+        for (Overloads.Arity a : plan) {
+            targets[a.count - low] = new ClassFileWriter.Label();
+        }
+        c.load('L', env + 1);
+        c.op(ClassFileWriter.ARRAYLENGTH, 0);
+        c.tableSwitch(low, high, dflt, targets);
+
+        for (Overloads.Arity a : plan) {
+            c.mark(targets[a.count - low]);
+            int[] slots = new int[a.positions.size()];
+            for (int p = 0; p < slots.length; p++) {
+                slots[p] = c.newLocal('I');
+                c.load('L', env + 1);
+                c.iconst(a.positions.get(p));
+                c.op(ClassFileWriter.AALOAD, -1);
+                c.invoke(ClassFileWriter.INVOKESTATIC, Marshalling.CLASS, "typeBit", "(" + Marshalling.MEMORY_D + ")I");
+                c.store('I', slots[p]);
+            }
+            for (int i = 0; i < a.candidates.size(); i++) {
+                int[] checks = a.checks(i);
+                ClassFileWriter.Label next = new ClassFileWriter.Label();
+                boolean conditional = false;
+                for (int p = 0; p < checks.length; p++) {
+                    if (checks[p] == Overloads.ANY) {
+                        continue;
+                    }
+                    c.load('I', slots[p]);
+                    c.iconst(checks[p]);
+                    c.op(ClassFileWriter.IAND, -1);
+                    c.jump(ClassFileWriter.IFEQ, next);
+                    conditional = true;
+                }
+                call(c, wrapper, owner, a.candidates.get(i), env);
+                if (!conditional) {
+                    break;
+                }
+                c.mark(next);
+            }
+        }
+
+        // throw Marshal.arity("name", args.length, "1, 2")
+        c.mark(dflt);
+        c.ldc(name);
+        c.load('L', env + 1);
+        c.op(ClassFileWriter.ARRAYLENGTH, 0);
+        c.ldc(Overloads.counts(plan));
+        c.invoke(ClassFileWriter.INVOKESTATIC, Marshalling.CLASS, "arity",
+                "(Ljava/lang/String;ILjava/lang/String;)Ljava/lang/IllegalArgumentException;");
+        c.op(ClassFileWriter.ATHROW, -1);
+    }
+
+    /**
+     * Пакетный вариант статического метода — то же, что в исходнике обёртки:
+     * it = Marshal.batch("nameBatch", args); while (it.next()) r.add(name(env, Marshal.tuple(it.getValue())));
+     */
+    private static void batch(ClassFileWriter cw, String name, String batch) {
+        ClassFileWriter.Code c = cw.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC
+                | ClassFileWriter.ACC_VARARGS, batch, Marshalling.WRAPPER_DESC);
+        c.annotate(SIGNATURE);
+        c.ldc(batch);
+        c.load('L', 1);
+        c.invoke(ClassFileWriter.INVOKESTATIC, Marshalling.CLASS, "batch",
+                "(Ljava/lang/String;[" + Marshalling.MEMORY_D + ")L" + Marshalling.FOREACH + ";");
+        int it = c.newLocal('L');
+        c.store('L', it);
+        c.type(ClassFileWriter.NEW, Marshalling.ARRAY_MEMORY);
+        c.op(ClassFileWriter.DUP, 1);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, Marshalling.ARRAY_MEMORY, "<init>", "()V");
+        int r = c.newLocal('L');
+        c.store('L', r);
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        c.mark(loop);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, Marshalling.FOREACH, "next", "()Z");
+        c.jump(ClassFileWriter.IFEQ, end);
+        c.load('L', r);
+        c.load('L', 0);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, Marshalling.FOREACH, "getValue", "()" + Marshalling.MEMORY_D);
+        c.invoke(ClassFileWriter.INVOKESTATIC, Marshalling.CLASS, "tuple",
+                "(" + Marshalling.MEMORY_D + ")[" + Marshalling.MEMORY_D);
+        c.invoke(ClassFileWriter.INVOKESTATIC, cw.name(), name, Marshalling.WRAPPER_DESC);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, Marshalling.ARRAY_MEMORY, "add", Marshalling.ADD_DESC);
+        c.op(ClassFileWriter.POP, -1);
+        c.jump(ClassFileWriter.GOTO, loop);
+        c.mark(end);
+        c.load('L', r);
+        c.returnValue('L');
+    }
+
+    // return <результат>(Owner.name(<args[i] в Java-типах>)) — как writeCall в исходнике;
+    // нестатический метод вызывается на this.instance, конструктор присваивает this.instance
+    private static void call(ClassFileWriter.Code c, String wrapper, String owner, Main.MethodInfo mi, int env) {
+        boolean constructor = Main.isConstructor(mi);
+        if (constructor) {
+            c.load('L', 0);
+            c.type(ClassFileWriter.NEW, owner);
+            c.op(ClassFileWriter.DUP, 1);
+        } else if (!mi.isStatic) {
+            c.load('L', 0);
+            c.field(ClassFileWriter.GETFIELD, wrapper, "instance", "L" + owner + ";");
+        }
+        int arg = 0;
+        for (String pt : ClassFileReader.parameterTypes(mi.descriptor)) {
+            if (Main.isEnvironment(pt)) {
+                c.load('L', env);
+                continue;
+            }
+            c.load('L', env + 1);
+            c.iconst(arg++);
+            c.op(ClassFileWriter.AALOAD, -1);
+            Marshalling.Conversion cv = Marshalling.param(pt);
+            if (cv != null) {
+                cv.emit(c);
+            }
+        }
+        if (constructor) {
+            c.invoke(ClassFileWriter.INVOKESPECIAL, owner, "<init>", mi.descriptor);
+            c.field(ClassFileWriter.PUTFIELD, wrapper, "instance", "L" + owner + ";");
+        } else {
+            c.invoke(mi.isStatic ? ClassFileWriter.INVOKESTATIC : ClassFileWriter.INVOKEVIRTUAL,
+                    owner, Overloads.name(mi), mi.descriptor);
+        }
+        Marshalling.Conversion ret = Marshalling.result(ClassFileReader.returnType(mi.descriptor));
+        if (ret == null) {
+            c.field(ClassFileWriter.GETSTATIC, Marshalling.MEMORY, "NULL", Marshalling.MEMORY_D);
+        } else {
+            ret.emit(c);
+        }
+        c.returnValue('L');
+    }
+
+    /**
+     * Те же три конструктора, что и в исходнике обёртки, — все вызывают super.
+     */
+    static void writeConstructors(ClassFileWriter cw) {
+        constructor(cw, ClassFileWriter.ACC_PUBLIC, "(" + ENVIRONMENT + ")V");
+        constructor(cw, ClassFileWriter.ACC_PROTECTED, "(" + CLASS_ENTITY + ")V");
+        constructor(cw, ClassFileWriter.ACC_PUBLIC, "(" + ENVIRONMENT + CLASS_ENTITY + ")V");
+    }
+
+    private static void constructor(ClassFileWriter cw, int access, String desc) {
+        ClassFileWriter.Code c = cw.method(access, "<init>", desc);
+        c.load('L', 0);
+        c.loadArguments(desc, 1);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, BASE_OBJECT, "<init>", desc);
+        c.returnValue('V');
+    }
+
+    /**
+     * Пишет Extension-класс, регистрирующий обёртки всех classes (lazy — через индекс
+     * в JTJ.runtime.Registry, как в Main.writeExtension).
+     * Возвращает его полное имя (JTJ.register.XxxExtension).
+     */
+    static String writeExtension(Collection<String> classes, boolean lazy, BundleOutput output,
+                                 PrintStream out) throws IOException {
+        String extName = "JTJ/register/" + Main.randomExtensionName();
+        ClassFileWriter cw = new ClassFileWriter(ClassFileWriter.ACC_PUBLIC, extName, EXTENSION);
+
+        ClassFileWriter.Code init = cw.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        init.load('L', 0);
+        init.invoke(ClassFileWriter.INVOKESPECIAL, EXTENSION, "<init>", "()V");
+        init.returnValue('V');
+
+        ClassFileWriter.Code status = cw.method(ClassFileWriter.ACC_PUBLIC, "getStatus", "()L" + STATUS + ";");
+        status.field(ClassFileWriter.GETSTATIC, STATUS, "EXPERIMENTAL", "L" + STATUS + ";");
+        status.returnValue('L');
+
+        ClassFileWriter.Code packages = cw.method(ClassFileWriter.ACC_PUBLIC, "getPackageNames", "()[Ljava/lang/String;");
+        packages.iconst(1);
+        packages.type(ClassFileWriter.ANEWARRAY, "java/lang/String");
+        packages.op(ClassFileWriter.DUP, 1);
+        packages.iconst(0);
+        packages.ldc("jtj");
+        packages.op(ClassFileWriter.AASTORE, -3);
+        packages.returnValue('[');
+
+        // registerClass(scope, Foo.class) — как javac компилирует вызов varargs-метода
+        ClassFileWriter.Code register = cw.method(ClassFileWriter.ACC_PUBLIC, "onRegister", "(" + COMPILE_SCOPE + ")V");
+        for (String chunk : lazy ? Main.registryIndex(classes) : Collections.<String>emptyList()) {
+            register.load('L', 0);
+            register.load('L', 1);
+            register.ldc(chunk);
+            register.invoke(ClassFileWriter.INVOKESTATIC, Marshalling.REGISTRY, "register",
+                    "(L" + EXTENSION + ";" + COMPILE_SCOPE + "Ljava/lang/String;)V");
+        }
+        for (String fullClass : lazy ? Collections.<String>emptyList() : classes) {
+            register.load('L', 0);
+            register.load('L', 1);
+            register.iconst(1);
+            register.type(ClassFileWriter.ANEWARRAY, "java/lang/Class");
+            register.op(ClassFileWriter.DUP, 1);
+            register.iconst(0);
+            register.ldcClass(wrapperName(fullClass));
+            register.op(ClassFileWriter.AASTORE, -3);
+            register.invoke(ClassFileWriter.INVOKEVIRTUAL, extName, "registerClass",
+                    "(" + COMPILE_SCOPE + "[Ljava/lang/Class;)V");
+        }
+        register.returnValue('V');
+
+        out.println("Generated Extension: " + output.writeClass(extName + ".class", cw.toByteArray()));
+        return extName.replace('/', '.');
+    }
+}
@@ -0,0 +1,289 @@
+package meigo.studio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Разбирает .class файл напрямую из байтов: constant pool, заголовок класса и таблицу методов.
+ * Класс при этом не загружается в JVM и его зависимости не нужны.
+ */
+final class ClassFileReader {
+    private static final int CONSTANT_UTF8                = 1;
+    private static final int CONSTANT_INTEGER             = 3;
+    private static final int CONSTANT_FLOAT               = 4;
+    private static final int CONSTANT_LONG                = 5;
+    private static final int CONSTANT_DOUBLE              = 6;
+    private static final int CONSTANT_CLASS               = 7;
+    private static final int CONSTANT_STRING              = 8;
+    private static final int CONSTANT_FIELDREF            = 9;
+    private static final int CONSTANT_METHODREF           = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE       = 12;
+    private static final int CONSTANT_METHOD_HANDLE       = 15;
+    private static final int CONSTANT_METHOD_TYPE         = 16;
+    private static final int CONSTANT_DYNAMIC             = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC      = 18;
+    private static final int CONSTANT_MODULE              = 19;
+    private static final int CONSTANT_PACKAGE             = 20;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_INTERFACE = 0x0200;
+    static final int ACC_ABSTRACT = 0x0400;
+
+    /** Метод из таблицы методов: модификаторы, имя и дескриптор вида (ILjava/lang/String;)V */
+    static final class MethodEntry {
+        final int access;
+        final String name;
+        final String descriptor;
+        MethodEntry(int access, String name, String descriptor) {
+            this.access     = access;
+            this.name       = name;
+            this.descriptor = descriptor;
+        }
+    }
+
+    /** Результат разбора: внутренние имена (через '/'), суперкласс, интерфейсы и методы */
+    static final class ClassInfo {
+        final int access;
+        final String name;
+        final String superName;
+        final List<String> interfaces;
+        final List<MethodEntry> methods;
+        ClassInfo(int access, String name, String superName, List<String> interfaces, List<MethodEntry> methods) {
+            this.access     = access;
+            this.name       = name;
+            this.superName  = superName;
+            this.interfaces = interfaces;
+            this.methods    = methods;
+        }
+    }
+
+    private final byte[] b;
+    private int pos;
+    // смещения записей constant pool (на байт тега), строки декодируются лениво
+    private int[] cpOffsets;
+    private String[] utf8Cache;
+
+    private ClassFileReader(byte[] bytes) {
+        this.b = bytes;
+    }
+
+    /**
+     * Полный разбор заголовка и методов. Поля и атрибуты пропускаются.
+     */
+    static ClassInfo read(byte[] bytes) throws IOException {
+        return new ClassFileReader(bytes).parse(true);
+    }
+
+    /**
+     * Только заголовок (имя, суперкласс, интерфейсы) — для построения иерархии типов.
+     */
+    static ClassInfo readHeader(byte[] bytes) throws IOException {
+        return new ClassFileReader(bytes).parse(false);
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 4096));
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private ClassInfo parse(boolean withMethods) throws IOException {
+        try {
+            if (u4() != 0xCAFEBABE) {
+                throw new IOException("not a class file");
+            }
+            pos += 4; // minor + major
+
+            // 1) constant pool
+            int cpCount = u2();
+            cpOffsets = new int[cpCount];
+            utf8Cache = new String[cpCount];
+            for (int i = 1; i < cpCount; i++) {
+                cpOffsets[i] = pos;
+                int tag = b[pos++] & 0xFF;
+                switch (tag) {
+                    case CONSTANT_UTF8:
+                        pos += 2 + u2at(pos);
+                        break;
+                    case CONSTANT_CLASS:
+                    case CONSTANT_STRING:
+                    case CONSTANT_METHOD_TYPE:
+                    case CONSTANT_MODULE:
+                    case CONSTANT_PACKAGE:
+                        pos += 2;
+                        break;
+                    case CONSTANT_METHOD_HANDLE:
+                        pos += 3;
+                        break;
+                    case CONSTANT_INTEGER:
+                    case CONSTANT_FLOAT:
+                    case CONSTANT_FIELDREF:
+                    case CONSTANT_METHODREF:
+                    case CONSTANT_INTERFACE_METHODREF:
+                    case CONSTANT_NAME_AND_TYPE:
+                    case CONSTANT_DYNAMIC:
+                    case CONSTANT_INVOKE_DYNAMIC:
+                        pos += 4;
+                        break;
+                    case CONSTANT_LONG:
+                    case CONSTANT_DOUBLE:
+                        pos += 8;
+                        i++; // занимают два слота
+                        break;
+                    default:
+                        throw new IOException("bad constant pool tag " + tag + " at " + (pos - 1));
+                }
+            }
+
+            // 2) заголовок класса
+            int access = u2();
+            String name = className(u2());
+            int superIdx = u2();
+            String superName = superIdx == 0 ? null : className(superIdx);
+            int ifCount = u2();
+            List<String> interfaces = ifCount == 0
+                    ? Collections.<String>emptyList()
+                    : new ArrayList<String>(ifCount);
+            for (int i = 0; i < ifCount; i++) {
+                interfaces.add(className(u2()));
+            }
+            if (!withMethods) {
+                return new ClassInfo(access, name, superName, interfaces, Collections.<MethodEntry>emptyList());
+            }
+
+            // 3) поля пропускаем
+            int fieldCount = u2();
+            for (int i = 0; i < fieldCount; i++) {
+                pos += 6;
+                skipAttributes();
+            }
+
+            // 4) методы
+            int methodCount = u2();
+            List<MethodEntry> methods = new ArrayList<>(methodCount);
+            for (int i = 0; i < methodCount; i++) {
+                int mAccess = u2();
+                String mName = utf8(u2());
+                String mDesc = utf8(u2());
+                skipAttributes();
+                methods.add(new MethodEntry(mAccess, mName, mDesc));
+            }
+            return new ClassInfo(access, name, superName, interfaces, methods);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("truncated class file", e);
+        }
+    }
+
+    private void skipAttributes() {
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            pos += 2;
+            pos += 4 + u4();
+        }
+    }
+
+    private String className(int index) {
+        return utf8(u2at(cpOffsets[index] + 1));
+    }
+
+    private String utf8(int index) {
+        String s = utf8Cache[index];
+        if (s == null) {
+            int start = cpOffsets[index] + 1;
+            int len = u2at(start);
+            s = decodeModifiedUtf8(start + 2, len);
+            utf8Cache[index] = s;
+        }
+        return s;
+    }
+
+    private String decodeModifiedUtf8(int off, int len) {
+        // быстрый путь: имена и дескрипторы почти всегда ASCII
+        boolean ascii = true;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            return new String(b, off, len, StandardCharsets.ISO_8859_1);
+        }
+        char[] out = new char[len];
+        int n = 0;
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            int c = b[i++] & 0xFF;
+            if (c < 0x80) {
+                out[n++] = (char) c;
+            } else if ((c & 0xE0) == 0xC0) {
+                out[n++] = (char) (((c & 0x1F) << 6) | (b[i++] & 0x3F));
+            } else {
+                int c2 = b[i++] & 0x3F;
+                int c3 = b[i++] & 0x3F;
+                out[n++] = (char) (((c & 0x0F) << 12) | (c2 << 6) | c3);
+            }
+        }
+        return new String(out, 0, n);
+    }
+
+    /**
+     * Типы параметров из дескриптора метода: "(I[Ljava/lang/String;)V" -> ["I", "[Ljava/lang/String;"]
+     */
+    static List<String> parameterTypes(String descriptor) {
+        List<String> out = new ArrayList<>();
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int end = typeEnd(descriptor, i);
+            out.add(descriptor.substring(i, end));
+            i = end;
+        }
+        return out;
+    }
+
+    /**
+     * Возвращаемый тип из дескриптора метода: "(I)Ljava/lang/String;" -> "Ljava/lang/String;"
+     */
+    static String returnType(String descriptor) {
+        return descriptor.substring(descriptor.indexOf(')') + 1);
+    }
+
+    private static int typeEnd(String descriptor, int i) {
+        while (descriptor.charAt(i) == '[') {
+            i++;
+        }
+        if (descriptor.charAt(i) == 'L') {
+            return descriptor.indexOf(';', i) + 1;
+        }
+        return i + 1;
+    }
+
+    private int u2() {
+        int v = u2at(pos);
+        pos += 2;
+        return v;
+    }
+
+    private int u2at(int p) {
+        return ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+    }
+
+    private int u4() {
+        int v = ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16)
+                | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+        pos += 4;
+        return v;
+    }
+}
@@ -0,0 +1,637 @@
+package meigo.studio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Минимальный ассемблер .class файлов — пара к ClassFileReader.
+ *
+ * Пишет версию 49 (Java 5): для неё не нужна таблица StackMapTable, поэтому ветвления
+ * не требуют вычисления фреймов, а JVM проверяет такие классы старым верификатором.
+ * Глубина стека считается по ходу записи инструкций, max_locals — по использованным слотам.
+ */
+final class ClassFileWriter {
+    static final int ACC_PUBLIC    = 0x0001;
+    static final int ACC_PRIVATE   = 0x0002;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_STATIC    = 0x0008;
+    static final int ACC_FINAL     = 0x0010;
+    static final int ACC_SUPER     = 0x0020;
+    static final int ACC_VARARGS   = 0x0080;
+    static final int ACC_INTERFACE = 0x0200;
+    static final int ACC_ABSTRACT  = 0x0400;
+
+    // опкоды, которые нужны генераторам обёрток
+    static final int ACONST_NULL   = 0x01;
+    static final int POP           = 0x57;
+    static final int DUP           = 0x59;
+    static final int IADD          = 0x60;
+    static final int IAND          = 0x7e;
+    static final int L2I           = 0x88;
+    static final int I2L           = 0x85;
+    static final int IFEQ          = 0x99;
+    static final int IFNE          = 0x9a;
+    static final int IF_ICMPLT     = 0xa1;
+    static final int IF_ICMPGE     = 0xa2;
+    static final int IF_ICMPNE     = 0xa0;
+    static final int IF_ACMPNE     = 0xa6;
+    static final int GOTO          = 0xa7;
+    static final int IFNULL        = 0xc6;
+    static final int IFNONNULL     = 0xc7;
+    static final int IALOAD        = 0x2e;
+    static final int LALOAD        = 0x2f;
+    static final int FALOAD        = 0x30;
+    static final int DALOAD        = 0x31;
+    static final int AALOAD        = 0x32;
+    static final int BALOAD        = 0x33;
+    static final int CALOAD        = 0x34;
+    static final int SALOAD        = 0x35;
+    static final int IASTORE       = 0x4f;
+    static final int LASTORE       = 0x50;
+    static final int DASTORE       = 0x52;
+    static final int AASTORE       = 0x53;
+    static final int BASTORE       = 0x54;
+    static final int F2D           = 0x8d;
+    static final int D2F           = 0x90;
+    static final int I2B           = 0x91;
+    static final int I2C           = 0x92;
+    static final int I2S           = 0x93;
+    static final int ARRAYLENGTH   = 0xbe;
+    static final int ATHROW        = 0xbf;
+    static final int GETSTATIC     = 0xb2;
+    static final int PUTSTATIC     = 0xb3;
+    static final int GETFIELD      = 0xb4;
+    static final int PUTFIELD      = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC  = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW           = 0xbb;
+    static final int ANEWARRAY     = 0xbd;
+    static final int CHECKCAST     = 0xc0;
+    static final int INSTANCEOF    = 0xc1;
+
+    private static final int VERSION = 49;
+
+    private final String name;
+    private final String superName;
+    private final int access;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<Annotation> annotations = new ArrayList<>();
+    private final List<String> interfaces = new ArrayList<>();
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    /**
+     * name и superName — внутренние имена (через '/').
+     */
+    ClassFileWriter(int access, String name, String superName) {
+        // у интерфейса ACC_SUPER быть не должно
+        this.access    = (access & ACC_INTERFACE) != 0 ? access : access | ACC_SUPER;
+        this.name      = name;
+        this.superName = superName;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Аннотация класса; values — пары имя/строковое значение.
+     */
+    void annotate(String descriptor, String... values) {
+        annotations.add(new Annotation(descriptor, values));
+    }
+
+    /** Реализуемый интерфейс (внутреннее имя) */
+    void implement(String internalName) {
+        interfaces.add(internalName);
+    }
+
+    void field(int access, String fieldName, String descriptor) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(b);
+        try {
+            d.writeShort(access);
+            d.writeShort(utf8(fieldName));
+            d.writeShort(utf8(descriptor));
+            d.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(b.toByteArray());
+    }
+
+    /**
+     * Новый метод; инструкции пишутся в возвращённый Code.
+     */
+    Code method(int access, String methodName, String descriptor) {
+        Code c = new Code(access, methodName, descriptor);
+        methods.add(c);
+        return c;
+    }
+
+    byte[] toByteArray() {
+        try {
+            // constant pool должен быть заполнен до записи заголовка
+            int thisClass = classRef(name);
+            int superClass = classRef(superName);
+            int[] interfaceRefs = new int[interfaces.size()];
+            for (int i = 0; i < interfaceRefs.length; i++) {
+                interfaceRefs[i] = classRef(interfaces.get(i));
+            }
+            List<byte[]> methodBytes = new ArrayList<>(methods.size());
+            for (Code c : methods) {
+                methodBytes.add(c.toMethod());
+            }
+            byte[] classAnnotations = annotations.isEmpty() ? null : annotationsAttribute(annotations);
+
+            ByteArrayOutputStream b = new ByteArrayOutputStream(poolBytes.size() + 256);
+            DataOutputStream out = new DataOutputStream(b);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for (int ref : interfaceRefs) {
+                out.writeShort(ref);
+            }
+            out.writeShort(fields.size());
+            for (byte[] f : fields) {
+                out.write(f);
+            }
+            out.writeShort(methodBytes.size());
+            for (byte[] m : methodBytes) {
+                out.write(m);
+            }
+            if (classAnnotations == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.write(classAnnotations);
+            }
+            out.flush();
+            return b.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---------------- constant pool ----------------
+
+    private int constant(String key, int tag, Object a, Object b) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            switch (tag) {
+                case 1:
+                    pool.writeUTF((String) a);
+                    break;
+                case 3:
+                    pool.writeInt((Integer) a);
+                    break;
+                case 7:
+                case 8:
+                    pool.writeShort((Integer) a);
+                    break;
+                default: // 9, 10, 11, 12 — две ссылки
+                    pool.writeShort((Integer) a);
+                    pool.writeShort((Integer) b);
+                    break;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int i = poolCount++;
+        if (poolCount > 0xFFFF) {
+            throw new IllegalStateException("constant pool переполнен: " + name);
+        }
+        poolIndex.put(key, i);
+        return i;
+    }
+
+    int utf8(String s) {
+        return constant("U" + s, 1, s, null);
+    }
+
+    int classRef(String internalName) {
+        return constant("C" + internalName, 7, utf8(internalName), null);
+    }
+
+    private int string(String s) {
+        return constant("S" + s, 8, utf8(s), null);
+    }
+
+    private int integer(int v) {
+        return constant("I" + v, 3, v, null);
+    }
+
+    private int nameAndType(String n, String desc) {
+        return constant("N" + n + ":" + desc, 12, utf8(n), utf8(desc));
+    }
+
+    private int memberRef(int tag, String owner, String n, String desc) {
+        return constant(tag + owner + "." + n + ":" + desc, tag, classRef(owner), nameAndType(n, desc));
+    }
+
+    // ---------------- аннотации ----------------
+
+    private static final class Annotation {
+        final String descriptor;
+        final String[] values;
+        Annotation(String descriptor, String[] values) {
+            this.descriptor = descriptor;
+            this.values     = values;
+        }
+    }
+
+    private byte[] annotationsAttribute(List<Annotation> list) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(body);
+        d.writeShort(list.size());
+        for (Annotation a : list) {
+            d.writeShort(utf8(a.descriptor));
+            d.writeShort(a.values.length / 2);
+            for (int i = 0; i + 1 < a.values.length; i += 2) {
+                d.writeShort(utf8(a.values[i]));
+                d.writeByte('s');
+                d.writeShort(utf8(a.values[i + 1]));
+            }
+        }
+        return attribute("RuntimeVisibleAnnotations", body.toByteArray());
+    }
+
+    private byte[] attribute(String attrName, byte[] body) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(body.length + 6);
+        DataOutputStream d = new DataOutputStream(b);
+        d.writeShort(utf8(attrName));
+        d.writeInt(body.length);
+        d.write(body);
+        return b.toByteArray();
+    }
+
+    // ---------------- код метода ----------------
+
+    /** Метка перехода; позиция известна после mark() */
+    static final class Label {
+        private int pos = -1;
+        private int stack = -1;
+        private final List<int[]> fixups = new ArrayList<>(); // {позиция инструкции, позиция смещения, ширина}
+    }
+
+    /**
+     * Тело одного метода. Слоты локальных переменных — как в JVM: параметры сначала
+     * (this для нестатических), long/double занимают по два слота.
+     */
+    final class Code {
+        private final int access;
+        private final String methodName;
+        private final String descriptor;
+        private final List<Annotation> methodAnnotations = new ArrayList<>();
+        private byte[] code = new byte[64];
+        private int length;
+        private int stack;
+        private int maxStack;
+        private int maxLocals;
+        private boolean reachable = true;
+
+        private Code(int access, String methodName, String descriptor) {
+            this.access     = access;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.maxLocals  = argumentSlots(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+        }
+
+        void annotate(String annotationDescriptor, String... values) {
+            methodAnnotations.add(new Annotation(annotationDescriptor, values));
+        }
+
+        /** Следующий свободный слот локальных переменных */
+        int newLocal(char type) {
+            int slot = maxLocals;
+            maxLocals += type == 'J' || type == 'D' ? 2 : 1;
+            return slot;
+        }
+
+        void load(char type, int slot) {
+            varOp(loadOpcode(type), slot, size(type));
+        }
+
+        void store(char type, int slot) {
+            varOp(loadOpcode(type) + (0x36 - 0x15), slot, -size(type));
+        }
+
+        /** Загружает все аргументы метода начиная со слота from */
+        void loadArguments(String desc, int from) {
+            int slot = from;
+            for (String t : ClassFileReader.parameterTypes(desc)) {
+                load(t.charAt(0), slot);
+                slot += size(t.charAt(0));
+            }
+        }
+
+        void returnValue(char type) {
+            switch (type) {
+                case 'V': op(0xb1, 0); break;
+                case 'J': op(0xad, -2); break;
+                case 'F': op(0xae, -1); break;
+                case 'D': op(0xaf, -2); break;
+                case 'L':
+                case '[': op(0xb0, -1); break;
+                default:  op(0xac, -1); break;
+            }
+            reachable = false;
+        }
+
+        /**
+         * Инструкция без операндов; delta — изменение глубины стека.
+         */
+        void op(int opcode, int delta) {
+            emit(opcode);
+            adjust(delta);
+            if (opcode == ATHROW) {
+                reachable = false;
+            }
+        }
+
+        void iconst(int v) {
+            if (v >= -1 && v <= 5) {
+                emit(0x03 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                emit(0x10);
+                emit(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                emit(0x11);
+                emit2(v);
+            } else {
+                ldc(integer(v));
+            }
+            adjust(1);
+        }
+
+        void lconst(long v) {
+            if (v == 0 || v == 1) {
+                emit(0x09 + (int) v);
+                adjust(2);
+            } else {
+                iconst((int) v);
+                op(I2L, 1);
+            }
+        }
+
+        void ldc(String s) {
+            ldc(string(s));
+            adjust(1);
+        }
+
+        /** Загружает литерал класса (Foo.class) */
+        void ldcClass(String internalName) {
+            ldc(classRef(internalName));
+            adjust(1);
+        }
+
+        private void ldc(int index) {
+            if (index <= 0xFF) {
+                emit(0x12);
+                emit(index);
+            } else {
+                emit(0x13);
+                emit2(index);
+            }
+        }
+
+        /** NEW, ANEWARRAY, CHECKCAST, INSTANCEOF */
+        void type(int opcode, String internalName) {
+            emit(opcode);
+            emit2(classRef(internalName));
+            adjust(opcode == NEW ? 1 : 0);
+        }
+
+        void field(int opcode, String owner, String fieldName, String desc) {
+            emit(opcode);
+            emit2(memberRef(9, owner, fieldName, desc));
+            int size = size(desc.charAt(0));
+            switch (opcode) {
+                case GETSTATIC: adjust(size); break;
+                case PUTSTATIC: adjust(-size); break;
+                case GETFIELD:  adjust(size - 1); break;
+                default:        adjust(-size - 1); break;
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String desc) {
+            boolean itf = opcode == INVOKEINTERFACE;
+            int args = argumentSlots(desc);
+            emit(opcode);
+            emit2(memberRef(itf ? 11 : 10, owner, name, desc));
+            if (itf) {
+                emit(args + 1);
+                emit(0);
+            }
+            int ret = size(ClassFileReader.returnType(desc).charAt(0));
+            adjust(ret - args - (opcode == INVOKESTATIC ? 0 : 1));
+        }
+
+        void jump(int opcode, Label target) {
+            int at = length;
+            emit(opcode);
+            switch (opcode) {
+                case GOTO: break;
+                case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPNE: case IF_ACMPNE: adjust(-2); break;
+                default: adjust(-1); break;
+            }
+            reference(target, at, 2);
+            if (opcode == GOTO) {
+                reachable = false;
+            }
+        }
+
+        /**
+         * tableswitch по значению со стека: keys[i] -> targets[i], остальное -> dflt.
+         * Ключи должны быть возрастающими.
+         */
+        void tableSwitch(int low, int high, Label dflt, Label[] targets) {
+            int at = length;
+            emit(0xaa);
+            while (length % 4 != 0) {
+                emit(0);
+            }
+            adjust(-1);
+            reference(dflt, at, 4);
+            emit4(low);
+            emit4(high);
+            for (Label l : targets) {
+                reference(l, at, 4);
+            }
+            reachable = false;
+        }
+
+        /** NEWARRAY для массива примитивов; type — символ дескриптора элемента */
+        void newArray(char type) {
+            emit(0xbc);
+            emit("ZCFDBSIJ".indexOf(type) + 4);
+        }
+
+        void iinc(int slot, int delta) {
+            emit(0x84);
+            emit(slot);
+            emit(delta);
+        }
+
+        void mark(Label label) {
+            label.pos = length;
+            if (!reachable) {
+                stack = Math.max(label.stack, 0);
+            } else if (label.stack < 0) {
+                label.stack = stack;
+            }
+            reachable = true;
+            for (int[] f : label.fixups) {
+                patch(f[0], f[1], f[2], label.pos);
+            }
+        }
+
+        private void reference(Label label, int at, int width) {
+            if (label.stack < 0) {
+                label.stack = stack;
+            }
+            if (label.pos >= 0) {
+                patch(at, length, width, label.pos);
+                length += width;
+            } else {
+                label.fixups.add(new int[]{at, length, width});
+                for (int i = 0; i < width; i++) {
+                    emit(0);
+                }
+            }
+        }
+
+        private void patch(int at, int where, int width, int target) {
+            int offset = target - at;
+            ensure(where + width - length);
+            if (width == 2) {
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("слишком длинный метод: " + name + "." + methodName);
+                }
+                code[where]     = (byte) (offset >> 8);
+                code[where + 1] = (byte) offset;
+            } else {
+                code[where]     = (byte) (offset >> 24);
+                code[where + 1] = (byte) (offset >> 16);
+                code[where + 2] = (byte) (offset >> 8);
+                code[where + 3] = (byte) offset;
+            }
+        }
+
+        private void varOp(int opcode, int slot, int delta) {
+            if (slot > 0xFF) {
+                emit(0xc4); // wide
+                emit(opcode);
+                emit2(slot);
+            } else {
+                emit(opcode);
+                emit(slot);
+            }
+            adjust(delta);
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            if (stack > maxStack) {
+                maxStack = stack;
+            }
+        }
+
+        private void emit(int b) {
+            ensure(1);
+            code[length++] = (byte) b;
+        }
+
+        private void emit2(int v) {
+            emit(v >> 8);
+            emit(v);
+        }
+
+        private void emit4(int v) {
+            emit2(v >> 16);
+            emit2(v);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, length + extra));
+            }
+        }
+
+        private byte[] toMethod() throws IOException {
+            if (length > 0xFFFF) {
+                throw new IllegalStateException("слишком длинный метод: " + name + "." + methodName);
+            }
+            ByteArrayOutputStream b = new ByteArrayOutputStream(length + 64);
+            DataOutputStream m = new DataOutputStream(b);
+            m.writeShort(access);
+            m.writeShort(utf8(methodName));
+            m.writeShort(utf8(descriptor));
+            // у абстрактного метода нет атрибута Code
+            boolean hasCode = (access & ACC_ABSTRACT) == 0;
+            m.writeShort((hasCode ? 1 : 0) + (methodAnnotations.isEmpty() ? 0 : 1));
+            if (hasCode) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream(length + 16);
+                DataOutputStream d = new DataOutputStream(body);
+                d.writeShort(maxStack);
+                d.writeShort(maxLocals);
+                d.writeInt(length);
+                d.write(code, 0, length);
+                d.writeShort(0); // таблица исключений
+                d.writeShort(0); // атрибуты Code
+                m.write(attribute("Code", body.toByteArray()));
+            }
+            if (!methodAnnotations.isEmpty()) {
+                m.write(annotationsAttribute(methodAnnotations));
+            }
+            return b.toByteArray();
+        }
+    }
+
+    private static int loadOpcode(char type) {
+        switch (type) {
+            case 'J': return 0x16;
+            case 'F': return 0x17;
+            case 'D': return 0x18;
+            case 'L':
+            case '[': return 0x19;
+            default:  return 0x15;
+        }
+    }
+
+    /** Сколько слотов стека занимает значение типа: 0 для V, 2 для long/double */
+    static int size(char type) {
+        return type == 'V' ? 0 : type == 'J' || type == 'D' ? 2 : 1;
+    }
+
+    static int argumentSlots(String desc) {
+        int n = 0;
+        for (String t : ClassFileReader.parameterTypes(desc)) {
+            n += size(t.charAt(0));
+        }
+        return n;
+    }
+}
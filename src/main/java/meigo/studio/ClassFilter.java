@@ -0,0 +1,209 @@
+package meigo.studio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Фильтр классов по CONVERT_IGNORE и списку --include, применяется при чтении списка классов
+ * из central directory — до того, как байты класса прочитаны.
+ *
+ * Одна строка — один шаблон, # — комментарий. Шаблон делится точками на сегменты:
+ *   com.example.Foo        — один класс (и его вложенные классы)
+ *   com.example.*          — классы пакета com.example
+ *   com.example.**         — пакет com.example со всеми подпакетами (то же: com.example.)
+ *   com.example.*Impl      — * и ? внутри сегмента не переходят через точку
+ *   **.internal.**         — ** в любом месте: ноль или больше сегментов
+ *
+ * Шаблоны компилируются один раз в дерево сегментов: обычные сегменты ищутся в HashMap,
+ * поэтому проверка класса стоит O(число сегментов) и не зависит от числа шаблонов без *.
+ */
+final class ClassFilter {
+    /** Имя ресурса со списком по умолчанию */
+    static final String RESOURCE = "CONVERT_IGNORE";
+
+    /** Причина пропуска для шаблонов из файла --ignore */
+    static final String IGNORE_OPTION = "--ignore";
+
+    /** Пропускает все классы */
+    static final ClassFilter ALL = new ClassFilter(new Trie(), new Trie(), null);
+
+    private final Trie builtin;   // CONVERT_IGNORE
+    private final Trie ignore;    // --ignore
+    private final Trie include;   // null — включать всё, что не в builtin и ignore
+
+    private ClassFilter(Trie builtin, Trie ignore, Trie include) {
+        this.builtin = builtin;
+        this.ignore = ignore;
+        this.include = include;
+    }
+
+    /**
+     * Собирает фильтр из ресурса CONVERT_IGNORE, файла --ignore и файла --include
+     * (оба файла необязательны).
+     */
+    static ClassFilter load(File ignoreFile, File includeFile) throws IOException {
+        Trie builtin = new Trie();
+        try (InputStream in = ClassFilter.class.getResourceAsStream("/" + RESOURCE)) {
+            if (in != null) {
+                builtin.addAll(in);
+            }
+        }
+        Trie ignore = new Trie();
+        if (ignoreFile != null) {
+            try (InputStream in = new FileInputStream(ignoreFile)) {
+                ignore.addAll(in);
+            }
+        }
+        Trie include = null;
+        if (includeFile != null) {
+            include = new Trie();
+            try (InputStream in = new FileInputStream(includeFile)) {
+                include.addAll(in);
+            }
+        }
+        return new ClassFilter(builtin, ignore, include);
+    }
+
+    /**
+     * Причина, по которой класс не конвертируется, или null, если он проходит фильтр.
+     * className — полное имя через точки (com.example.Foo или com.example.Foo$Inner).
+     */
+    String reject(String className) {
+        // вложенный класс фильтруется вместе с внешним
+        int nested = className.indexOf('$');
+        String[] segments = (nested < 0 ? className : className.substring(0, nested)).split("\\.");
+        if (include != null && !include.matches(segments)) {
+            return "не входит в --include";
+        }
+        if (builtin.matches(segments)) {
+            return RESOURCE;
+        }
+        if (ignore.matches(segments)) {
+            return IGNORE_OPTION;
+        }
+        return null;
+    }
+
+    /** Дерево шаблонов по сегментам */
+    static final class Trie {
+        private final Node root = new Node();
+        private boolean empty = true;
+
+        void addAll(InputStream in) throws IOException {
+            BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                int comment = line.indexOf('#');
+                add(comment < 0 ? line : line.substring(0, comment));
+            }
+        }
+
+        void add(String pattern) {
+            pattern = pattern.trim().replace('/', '.');
+            if (pattern.isEmpty()) {
+                return;
+            }
+            if (pattern.endsWith(".")) {
+                pattern += "**";
+            }
+            Node n = root;
+            for (String segment : pattern.split("\\.")) {
+                n = n.child(segment);
+            }
+            n.terminal = true;
+            empty = false;
+        }
+
+        boolean matches(String[] segments) {
+            return !empty && match(root, segments, 0);
+        }
+
+        private static boolean match(Node n, String[] segments, int i) {
+            // ** поглощает ноль или больше сегментов
+            if (n.any != null) {
+                for (int k = i; k <= segments.length; k++) {
+                    if (match(n.any, segments, k)) {
+                        return true;
+                    }
+                }
+            }
+            if (i == segments.length) {
+                return n.terminal;
+            }
+            Node next = n.literal.get(segments[i]);
+            if (next != null && match(next, segments, i + 1)) {
+                return true;
+            }
+            for (Glob g : n.globs) {
+                if (g.pattern.matcher(segments[i]).matches() && match(g.node, segments, i + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> literal = new HashMap<>();
+        final List<Glob> globs = new ArrayList<>();
+        Node any;
+        boolean terminal;
+
+        Node child(String segment) {
+            if (segment.equals("**")) {
+                if (any == null) {
+                    any = new Node();
+                }
+                return any;
+            }
+            if (segment.indexOf('*') < 0 && segment.indexOf('?') < 0) {
+                return literal.computeIfAbsent(segment, k -> new Node());
+            }
+            for (Glob g : globs) {
+                if (g.source.equals(segment)) {
+                    return g.node;
+                }
+            }
+            Glob g = new Glob(segment);
+            globs.add(g);
+            return g.node;
+        }
+    }
+
+    // сегмент с * или ?: регулярное выражение внутри одного сегмента
+    private static final class Glob {
+        final String source;
+        final Pattern pattern;
+        final Node node = new Node();
+
+        Glob(String source) {
+            this.source = source;
+            StringBuilder re = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : source.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        re.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    re.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                re.append(Pattern.quote(literal.toString()));
+            }
+            this.pattern = Pattern.compile(re.toString());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package meigo.studio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Иерархия типов, построенная по заголовкам .class файлов, без загрузки классов.
+ * Нужна, чтобы ответить на вопрос "является ли тип List" так же, как List.class.isAssignableFrom().
+ */
+final class ClassIndex {
+    /** Источник байтов класса по внутреннему имени (java/util/List), null — если не найден */
+    interface ByteSource {
+        byte[] find(String internalName) throws IOException;
+    }
+
+    // заглушка для классов, которых нет ни в одном источнике
+    private static final ClassFileReader.ClassInfo MISSING =
+            new ClassFileReader.ClassInfo(0, "", null, Collections.<String>emptyList(),
+                    Collections.<ClassFileReader.MethodEntry>emptyList());
+
+    private final ClassIndex parent;   // спрашивается, если класса нет в sources; может быть null
+    private final List<ByteSource> sources;
+    private final ConcurrentHashMap<String, ClassFileReader.ClassInfo> headers = new ConcurrentHashMap<>();
+
+    ClassIndex(ByteSource... sources) {
+        this(null, sources);
+    }
+
+    /**
+     * Индекс поверх parent: уже прочитанные заголовки parent (например, JDK в демоне)
+     * переживают этот индекс и не читаются заново.
+     */
+    ClassIndex(ClassIndex parent, ByteSource... sources) {
+        this.parent = parent;
+        this.sources = Arrays.asList(sources);
+    }
+
+    /**
+     * Классы из открытого jar-файла (тот же JarReader, что читает классы для анализа).
+     */
+    static ByteSource jarSource(final JarReader jar) {
+        return new ByteSource() {
+            @Override
+            public byte[] find(String internalName) throws IOException {
+                return jar.read(internalName + ".class");
+            }
+        };
+    }
+
+    /**
+     * Классы JDK — читаются как ресурсы системного загрузчика, сами классы не определяются.
+     */
+    static ByteSource systemSource() {
+        return new ByteSource() {
+            @Override
+            public byte[] find(String internalName) throws IOException {
+                try (InputStream in = ClassLoader.getSystemResourceAsStream(internalName + ".class")) {
+                    return in == null ? null : ClassFileReader.readAll(in);
+                }
+            }
+        };
+    }
+
+    /**
+     * Добавляет уже разобранный класс, чтобы не читать его заголовок повторно.
+     */
+    void put(ClassFileReader.ClassInfo info) {
+        headers.putIfAbsent(info.name, info);
+    }
+
+    /**
+     * Прямые предки типа: суперкласс и интерфейсы (внутренние имена); для неизвестного — пусто.
+     */
+    List<String> supertypes(String internalName) {
+        ClassFileReader.ClassInfo h = header(internalName);
+        List<String> r = new ArrayList<>(h.interfaces.size() + 1);
+        if (h.superName != null) {
+            r.add(h.superName);
+        }
+        r.addAll(h.interfaces);
+        return r;
+    }
+
+    /**
+     * true, если type совпадает с target или наследует/реализует его (внутренние имена).
+     * Неизвестные предки считаются не совпадающими.
+     */
+    boolean isSubtypeOf(String type, String target) {
+        if (type.equals(target)) {
+            return true;
+        }
+        Set<String> seen = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(type);
+        while (!queue.isEmpty()) {
+            String cur = queue.poll();
+            if (!seen.add(cur)) {
+                continue;
+            }
+            if (cur.equals(target)) {
+                return true;
+            }
+            ClassFileReader.ClassInfo h = header(cur);
+            if (h.superName != null) {
+                queue.add(h.superName);
+            }
+            queue.addAll(h.interfaces);
+        }
+        return false;
+    }
+
+    private ClassFileReader.ClassInfo header(String internalName) {
+        ClassFileReader.ClassInfo h = headers.get(internalName);
+        if (h != null) {
+            return h;
+        }
+        h = MISSING;
+        for (ByteSource src : sources) {
+            try {
+                byte[] bytes = src.find(internalName);
+                if (bytes != null) {
+                    h = ClassFileReader.readHeader(bytes);
+                    break;
+                }
+            } catch (IOException ignored) {
+                // битый класс трактуем как отсутствующий
+            }
+        }
+        if (h == MISSING && parent != null) {
+            h = parent.header(internalName);
+        }
+        ClassFileReader.ClassInfo prev = headers.putIfAbsent(internalName, h);
+        return prev != null ? prev : h;
+    }
+}
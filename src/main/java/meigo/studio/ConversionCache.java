@@ -0,0 +1,253 @@
+package meigo.studio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Дисковый кеш результатов конвертации по каждому классу.
+ * Ключ — SHA-256 от байтов .class файла, версии генераторов и влияющих на тексты опций
+ * (--batch-calls, --backend), значение — результат анализа
+ * и уже сгенерированные PHP-заглушка и Java-обёртка. Неизменившиеся классы
+ * при повторном запуске не анализируются и не генерируются заново.
+ *
+ * От других классов зависит только одно: какие типы из сигнатур реализуют List (такой
+ * параметр становится array). Эти ответы лежат в записи и при попадании проверяются заново
+ * по ClassIndex (matches): если суперкласс перестал (или начал) реализовывать List,
+ * класс анализируется заново и запись перезаписывается.
+ *
+ * Демон (--daemon) держит записи ещё и в памяти (Memory): тогда повторный запуск не читает
+ * даже файлы кеша, а без --cache кеш живёт только в памяти.
+ */
+final class ConversionCache {
+    /** Меняется при любом изменении анализа или генераторов — старые записи перестают совпадать */
+    private static final String FORMAT = "jtj-cache-14";
+
+    /** Тип, от которого зависят метки методов: его подтипы в возвращаемом типе становятся LIST */
+    static final String LIST = "java/util/List";
+
+    /** Закешированный результат по одному классу */
+    static final class Entry {
+        final int declaredMethods;
+        final List<Main.MethodInfo> methods;
+        final Map<String, Boolean> listTypes; // тип из сигнатур -> был ли он подтипом List при анализе
+        final String phpStub;      // null, если у класса нет совместимых методов
+        final String javaWrapper;  // null, если нет совместимых методов или обёртки пишутся байткодом
+        Entry(int declaredMethods, List<Main.MethodInfo> methods, Map<String, Boolean> listTypes,
+              String phpStub, String javaWrapper) {
+            this.declaredMethods = declaredMethods;
+            this.methods         = methods;
+            this.listTypes       = listTypes;
+            this.phpStub         = phpStub;
+            this.javaWrapper     = javaWrapper;
+        }
+
+        /** true, если index отвечает про типы из сигнатур так же, как при анализе */
+        boolean matches(ClassIndex index) {
+            for (Map.Entry<String, Boolean> e : listTypes.entrySet()) {
+                if (index.isSubtypeOf(e.getKey(), LIST) != e.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Записи в памяти между запусками демона. Записи, которые не понадобились
+     * в очередном запуске (старые версии изменившихся классов), удаляет sweep().
+     */
+    static final class Memory {
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+        Entry get(String key) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                used.add(key);
+            }
+            return e;
+        }
+
+        void put(String key, Entry e) {
+            entries.put(key, e);
+            used.add(key);
+        }
+
+        /** Вызывается после запуска: остаются только записи, которые в нём понадобились */
+        void sweep() {
+            entries.keySet().retainAll(used);
+            used.clear();
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+
+    private final File dir;         // null — только в памяти
+    private final Memory memory;    // null — только на диске
+    private final String variant;   // опции, от которых зависят сгенерированные тексты
+
+    ConversionCache(File dir, Options options, Memory memory) {
+        this.dir = dir;
+        this.memory = memory;
+        this.variant = FORMAT + (options.batchCalls ? "+batch-calls" : "") + (options.bytecode ? "+bytecode" : "");
+    }
+
+    /**
+     * Ключ кеша для байтов класса.
+     */
+    String key(byte[] classBytes) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(variant.getBytes(StandardCharsets.UTF_8));
+            byte[] digest = md.digest(classBytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte d : digest) {
+                sb.append(Character.forDigit((d >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(d & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Запись по ключу или null. Повреждённые записи считаются отсутствующими.
+     */
+    Entry get(String key, String className) {
+        if (memory != null) {
+            Entry e = memory.get(key);
+            if (e != null) {
+                return e;
+            }
+        }
+        if (dir == null) {
+            return null;
+        }
+        Entry e = read(key, className);
+        if (e != null && memory != null) {
+            memory.put(key, e);
+        }
+        return e;
+    }
+
+    private Entry read(String key, String className) {
+        File f = file(key);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (!in.readUTF().equals(FORMAT)) {
+                return null;
+            }
+            int declared = in.readInt();
+            int count = in.readInt();
+            List<Main.MethodInfo> methods = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String typeLabel = in.readUTF();
+                String signature = in.readUTF();
+                boolean isStatic = in.readBoolean();
+                String descriptor = in.readUTF();
+                boolean inInterface = in.readBoolean();
+                methods.add(new Main.MethodInfo(typeLabel, className, signature, isStatic,
+                        descriptor, inInterface));
+            }
+            int types = in.readInt();
+            Map<String, Boolean> listTypes = new TreeMap<>();
+            for (int i = 0; i < types; i++) {
+                String type = in.readUTF();
+                listTypes.put(type, in.readBoolean());
+            }
+            String php = readText(in);
+            String java = readText(in);
+            return new Entry(declared, methods, listTypes, php, java);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Сохраняет запись. Пишется во временный файл и переименовывается,
+     * чтобы параллельные или прерванные запуски не оставляли полузаписанных файлов.
+     */
+    void put(String key, Entry e) throws IOException {
+        if (memory != null) {
+            memory.put(key, e);
+        }
+        if (dir == null) {
+            return;
+        }
+        File f = file(key);
+        f.getParentFile().mkdirs();
+        File tmp = new File(f.getParentFile(), f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeUTF(FORMAT);
+            out.writeInt(e.declaredMethods);
+            out.writeInt(e.methods.size());
+            for (Main.MethodInfo mi : e.methods) {
+                out.writeUTF(mi.typeLabel);
+                out.writeUTF(mi.signature);
+                out.writeBoolean(mi.isStatic);
+                out.writeUTF(mi.descriptor);
+                out.writeBoolean(mi.inInterface);
+            }
+            out.writeInt(e.listTypes.size());
+            for (Map.Entry<String, Boolean> t : e.listTypes.entrySet()) {
+                out.writeUTF(t.getKey());
+                out.writeBoolean(t.getValue());
+            }
+            writeText(out, e.phpStub);
+            writeText(out, e.javaWrapper);
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("не удалось записать " + f);
+            }
+        }
+    }
+
+    private File file(String key) {
+        // раскладываем по подпапкам, чтобы не держать тысячи файлов в одной директории
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    // writeUTF ограничен 64К, а обёртки больших классов бывают длиннее
+    private static void writeText(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
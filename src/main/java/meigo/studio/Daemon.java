@@ -0,0 +1,388 @@
+package meigo.studio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Демон (--daemon): JVM остаётся запущенной и конвертирует библиотеки по запросам клиентов
+ * (--client), поэтому код анализа и генерации уже прогрет JIT, а между запусками в памяти остаются:
+ *   - копия jar и индекс типов (ClassIndex) — пока jar не изменился;
+ *   - результаты анализа и сгенерированные тексты каждого класса (ConversionCache.Memory);
+ *   - заголовки классов JDK — общие для всех библиотек.
+ * Повторная конвертация после небольшого изменения разбирает и генерирует только изменившиеся классы.
+ *
+ * Демон следит за jar-файлами, с которыми уже работал: когда файл изменился и перестал меняться,
+ * последний запрос к этой библиотеке повторяется сам, лог пишется в вывод демона.
+ *
+ * Протокол: TCP на 127.0.0.1; порт и случайный токен демон пишет в ~/.jtj-daemon (файл читает
+ * только владелец). Клиент шлёт токен, свою папку, путь jar и аргументы (writeUTF), демон
+ * отвечает логом кусками (длина + байты), затем -1 и кодом выхода.
+ */
+final class Daemon {
+    /** Порт и токен запущенного демона */
+    static final File INFO = new File(System.getProperty("user.home"), ".jtj-daemon");
+    /** Как часто проверяются jar-файлы */
+    private static final long POLL_MS = 500;
+    private static final String STOP = "--stop";
+
+    private final String token;
+    private final ServerSocket server;
+    private final PrintStream console;
+    // заголовки JDK не зависят от библиотеки и читаются один раз
+    private final ClassIndex jdk = new ClassIndex(ClassIndex.systemSource());
+    private final Map<File, Session> sessions = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    private Daemon(String token, ServerSocket server, PrintStream console) {
+        this.token = token;
+        this.server = server;
+        this.console = console;
+    }
+
+    /**
+     * Запускает демон и обслуживает клиентов до --client --stop.
+     */
+    static void serve(Options options) throws IOException {
+        String[] running = info();
+        if (running != null && alive(running)) {
+            System.out.println("Демон уже запущен (" + INFO + ")");
+            System.exit(1);
+        }
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        ServerSocket server = new ServerSocket(options.daemonPort, 50, InetAddress.getLoopbackAddress());
+        Daemon d = new Daemon(token.toString(), server, System.out);
+        writeInfo(server.getLocalPort() + " " + d.token);
+        ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "jtj-daemon");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread watcher = new Thread(d::watch, "jtj-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+        System.out.println("Демон JavaToJPHP: 127.0.0.1:" + server.getLocalPort()
+                + " (запросы: --client, остановка: --client --stop)");
+        try {
+            while (d.running) {
+                Socket s = server.accept();
+                pool.execute(() -> d.handle(s));
+            }
+        } catch (SocketException e) {
+            // сокет закрыт по --stop
+            if (d.running) {
+                throw e;
+            }
+        } finally {
+            INFO.delete();
+            server.close();
+            // ответ на --stop ещё дописывается клиенту
+            pool.shutdown();
+            try {
+                pool.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println("Демон остановлен");
+    }
+
+    /**
+     * Клиент: отправляет конвертацию jarPath с аргументами args демону и печатает его лог.
+     * Возвращает код выхода конвертации.
+     */
+    static int request(String jarPath, String[] args) throws IOException {
+        String[] info = info();
+        if (info == null) {
+            System.out.println("Демон не запущен: нет " + INFO + " (запустите с --daemon)");
+            return 1;
+        }
+        List<String> forward = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.equals("--client")) {
+                forward.add(arg);
+            }
+        }
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(info[0]))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeUTF(info[1]);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeUTF(jarPath.isEmpty() ? jarPath : new File(jarPath).getAbsolutePath());
+            out.writeInt(forward.size());
+            for (String arg : forward) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            byte[] buf = new byte[1 << 16];
+            for (int n = in.readInt(); n >= 0; n = in.readInt()) {
+                if (n > buf.length) {
+                    buf = new byte[n];
+                }
+                in.readFully(buf, 0, n);
+                System.out.write(buf, 0, n);
+                System.out.flush();
+            }
+            return in.readInt();
+        } catch (ConnectException e) {
+            System.out.println("Демон не отвечает на порту " + info[0] + " (" + INFO + " устарел?)");
+            return 1;
+        } catch (EOFException e) {
+            System.out.println("Демон на порту " + info[0] + " закрыл соединение без ответа ("
+                    + INFO + " относится к другому демону?)");
+            return 1;
+        }
+    }
+
+    // одно соединение: запрос, лог кусками, код выхода
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            byte[] given = in.readUTF().getBytes(StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(given, token.getBytes(StandardCharsets.UTF_8))) {
+                // чужой или устаревший токен: только отказ, запрос не читается
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                byte[] msg = ("Неверный токен: " + INFO + " относится к другому демону\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                out.writeInt(msg.length);
+                out.write(msg);
+                out.writeInt(-1);
+                out.writeInt(1);
+                out.flush();
+                return;
+            }
+            File dir = new File(in.readUTF());
+            String jarPath = in.readUTF();
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            PrintStream log = new PrintStream(new BufferedOutputStream(new Frames(out), 1 << 16), false);
+            int code = run(dir, jarPath, args, log);
+            log.flush();
+            out.writeInt(-1);
+            out.writeInt(code);
+            out.flush();
+        } catch (IOException e) {
+            // клиент отключился — конвертация уже записана, ответ отправлять некому
+        }
+    }
+
+    private int run(File dir, String jarPath, String[] args, PrintStream log) throws IOException {
+        if (args.length == 1 && args[0].equals(STOP)) {
+            log.println("Демон остановлен");
+            running = false;
+            server.close();
+            return 0;
+        }
+        Request req = new Request(dir, args);
+        Session session = sessions.computeIfAbsent(new File(jarPath).getCanonicalFile(), Session::new);
+        try {
+            session.convert(req, log);
+            return 0;
+        } catch (IllegalArgumentException e) {
+            log.println(e.getMessage());
+            return 1;
+        } catch (IOException | RuntimeException e) {
+            log.println("Ошибка: " + e);
+            return 1;
+        }
+    }
+
+    // наблюдатель: изменившийся jar пересобирается последним запросом к нему
+    private void watch() {
+        while (running) {
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Session session : sessions.values()) {
+                Request last = session.changed();
+                if (last == null) {
+                    continue;
+                }
+                synchronized (console) {
+                    console.println("Изменился " + session.jarFile + ": повторяю последний запрос");
+                    try {
+                        session.convert(last, console);
+                    } catch (IOException | RuntimeException e) {
+                        console.println("Ошибка: " + e);
+                    }
+                    console.flush();
+                }
+            }
+        }
+    }
+
+    /** Запрос клиента: папка, от которой считаются пути, и аргументы конвертации */
+    private static final class Request {
+        final File dir;
+        final String[] args;
+        Request(File dir, String[] args) {
+            this.dir = dir;
+            this.args = args;
+        }
+    }
+
+    /** Одна библиотека: копия jar, индекс типов, кеш в памяти и последний запрос */
+    private final class Session {
+        final File jarFile;
+        final ConversionCache.Memory memory = new ConversionCache.Memory();
+        JarReader jar;
+        File copy;         // байты jar, с которых снята копия: их получают --bundle и --compile
+        ClassIndex index;
+        long stamp;        // время изменения и длина jar, с которых снята копия
+        long pending;      // замеченное изменение: ждёт, пока файл перестанет меняться
+        Request last;
+
+        Session(File jarFile) {
+            this.jarFile = jarFile;
+        }
+
+        synchronized void convert(Request req, PrintStream out) throws IOException {
+            Options options = Options.parse(req.args, req.dir);
+            if (options.batch != null || options.daemon || options.client) {
+                throw new IllegalArgumentException("демону нельзя передавать --batch, --daemon и --client");
+            }
+            long started = System.nanoTime();
+            out.println("Работаем с библиотекой: " + jarFile);
+            long now = stamp(jarFile);
+            if (jar == null || now != stamp) {
+                // 1) jar изменился: новая копия и новый индекс, кеш классов остаётся
+                stamp = now;
+                jar = null;
+                jar = JarReader.snapshot(jarFile, copy());
+                index = new ClassIndex(jdk, ClassIndex.jarSource(jar));
+            }
+            // 2) конвертация с кешем в памяти (и на диске, если есть --cache)
+            last = req;
+            options.cache = new ConversionCache(options.cacheDir, options, memory);
+            Main.convert(jar, jarFile.getPath(), index, Collections.<File>emptyList(), req.dir, options, out);
+            memory.sweep();
+            out.printf("DAEMON: %d ms, классов в памяти: %d%n",
+                    (System.nanoTime() - started) / 1_000_000, memory.size());
+        }
+
+        // файл копии: в своей временной папке и с именем jar — по нему называется libs/<jar> в бандле
+        private File copy() throws IOException {
+            if (copy == null) {
+                File dir = Files.createTempDirectory("jtj-daemon").toFile();
+                dir.deleteOnExit();
+                copy = new File(dir, jarFile.getName());
+                copy.deleteOnExit();
+            }
+            return copy;
+        }
+
+        // запрос, который нужно повторить, или null, если jar не менялся (или ещё меняется)
+        synchronized Request changed() {
+            if (last == null) {
+                return null;
+            }
+            long now = stamp(jarFile);
+            if (now == stamp) {
+                pending = 0;
+                return null;
+            }
+            if (now != pending) {
+                pending = now;
+                return null;
+            }
+            pending = 0;
+            return last;
+        }
+    }
+
+    // кусок лога: длина и байты; конец ответа пишет handle
+    private static final class Frames extends OutputStream {
+        private final DataOutputStream out;
+
+        Frames(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static long stamp(File f) {
+        return f.lastModified() * 31 + f.length();
+    }
+
+    // порт и токен из INFO или null
+    private static String[] info() throws IOException {
+        if (!INFO.isFile()) {
+            return null;
+        }
+        String[] parts = new String(Files.readAllBytes(INFO.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+        return parts.length == 2 ? parts : null;
+    }
+
+    private static boolean alive(String[] info) {
+        try {
+            new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(info[0])).close();
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // файл доступен только владельцу: токен разрешает писать файлы от имени демона
+    private static void writeInfo(String text) throws IOException {
+        INFO.delete();
+        if (!INFO.createNewFile()) {
+            throw new IOException("не удалось создать " + INFO);
+        }
+        INFO.setReadable(false, false);
+        INFO.setReadable(true, true);
+        INFO.setWritable(false, false);
+        INFO.setWritable(true, true);
+        Files.write(INFO.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+}
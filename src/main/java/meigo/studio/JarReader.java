@@ -0,0 +1,390 @@
+package meigo.studio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Чтение jar-файла за один проход: файл отображается в память (FileChannel.map) один раз,
+ * central directory разбирается при открытии, а байты записи распаковываются прямо
+ * из отображения в массив точного размера — без URL-потоков и промежуточных копий.
+ *
+ * Inflater и буфер сжатых данных у каждого потока свои и переиспользуются между записями,
+ * поэтому read() можно вызывать из пула анализа. Один и тот же JarReader служит и списку
+ * классов, и анализу, и индексу типов (ClassIndex.jarSource).
+ *
+ * Демон (--daemon) читает jar копией в памяти (snapshot): сборка библиотеки может перезаписать
+ * файл, пока демон держит его открытым, а отображение такого файла читать нельзя. Те же байты
+ * пишутся в отдельный файл (library()) — его кладут в бандл и в classpath компиляции, чтобы
+ * они совпадали с тем, что разобрано.
+ *
+ * Поддерживаются записи STORED и DEFLATED, в том числе zip64 (больше 65535 записей);
+ * шифрование — нет. Jar больше 2 ГБ в память не отображается (MappedByteBuffer ограничен 2 ГБ)
+ * и читается через java.util.zip.ZipFile — медленнее, но с тем же результатом.
+ */
+final class JarReader implements Closeable {
+    private static final int EOCD_SIG   = 0x06054b50;
+    private static final int CEN_SIG    = 0x02014b50;
+    private static final int LOC_SIG    = 0x04034b50;
+    private static final int ZIP64_EOCD_SIG    = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int EOCD_SIZE  = 22;
+    private static final int ZIP64_EOCD_SIZE    = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int CEN_SIZE   = 46;
+    private static final int LOC_SIZE   = 30;
+    private static final int STORED     = 0;
+    private static final int DEFLATED   = 8;
+
+    // у каждого потока свой Inflater (nowrap: в zip нет заголовка zlib) и буфер сжатых байтов
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[][]> INPUT = ThreadLocal.withInitial(() -> new byte[][] {new byte[64 * 1024]});
+
+    /** Запись central directory: всё, что нужно, чтобы достать её байты */
+    static final class Entry {
+        final String name;
+        final int method;
+        final int flags;
+        final long compressedSize;
+        final long size;
+        final long localOffset;
+        Entry(String name, int method, int flags, long compressedSize, long size, long localOffset) {
+            this.name           = name;
+            this.method         = method;
+            this.flags          = flags;
+            this.compressedSize = compressedSize;
+            this.size           = size;
+            this.localOffset    = localOffset;
+        }
+    }
+
+    private final File file;
+    private final File library;          // файл с теми же байтами, что читаются
+    private final FileChannel channel;   // null у копии в памяти и у jar больше 2 ГБ
+    private final ByteBuffer map;        // null у jar больше 2 ГБ
+    private final ZipFile zip;           // только у jar больше 2 ГБ
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName;
+
+    JarReader(File file) throws IOException {
+        this(file, file);
+    }
+
+    // library отображается в память, а больше 2 ГБ — открывается через ZipFile
+    private JarReader(File file, File library) throws IOException {
+        this.file = file;
+        this.library = library;
+        if (library.length() > Integer.MAX_VALUE) {
+            this.channel = null;
+            this.map = null;
+            this.zip = new ZipFile(library);
+            try {
+                entries = zipEntries(zip);
+            } catch (RuntimeException e) {
+                zip.close();
+                throw e;
+            }
+        } else {
+            this.zip = null;
+            this.channel = FileChannel.open(library.toPath(), StandardOpenOption.READ);
+            try {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+                entries = readCentralDirectory();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        byName = index(entries);
+    }
+
+    private JarReader(File file, File library, byte[] bytes) throws IOException {
+        this.file = file;
+        this.library = library;
+        this.channel = null;
+        this.zip = null;
+        this.map = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.entries = readCentralDirectory();
+        this.byName = index(entries);
+    }
+
+    /**
+     * Копия jar-файла в памяти: дальнейшие изменения файла на неё не влияют.
+     * Байты копии записываются в copy, он становится library(). Jar больше 2 ГБ в массив
+     * не помещается — он копируется в copy и читается оттуда.
+     */
+    static JarReader snapshot(File file, File copy) throws IOException {
+        if (file.length() > Integer.MAX_VALUE) {
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return new JarReader(file, copy);
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(copy.toPath(), bytes);
+        return new JarReader(file, copy, bytes);
+    }
+
+    private static Map<String, Entry> index(List<Entry> entries) {
+        Map<String, Entry> byName = new HashMap<>(entries.size() * 2);
+        for (Entry e : entries) {
+            byName.putIfAbsent(e.name, e);
+        }
+        return byName;
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * Файл с теми же байтами, что читает этот JarReader: сам jar или записанная копия (snapshot).
+     */
+    File library() {
+        return library;
+    }
+
+    /**
+     * Все записи в порядке central directory.
+     */
+    List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Запись по полному имени (com/example/Foo.class) или null.
+     */
+    Entry entry(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Байты записи: массив ровно размера записи, распакованный один раз.
+     */
+    byte[] read(Entry e) throws IOException {
+        if ((e.flags & 1) != 0) {
+            throw new IOException(e.name + ": зашифрованные записи не поддерживаются");
+        }
+        if (zip != null) {
+            return readZip(e);
+        }
+        ByteBuffer buf = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        // смещения и размеры взяты из файла: всё, что выходит за его конец, — повреждённый jar
+        int limit = buf.limit();
+        if (e.localOffset > limit - LOC_SIZE) {
+            throw new IOException(e.name + ": локальный заголовок за концом файла");
+        }
+        int loc = (int) e.localOffset;
+        if (buf.getInt(loc) != LOC_SIG) {
+            throw new IOException(e.name + ": повреждённый локальный заголовок");
+        }
+        // длины имени и extra в локальном заголовке могут отличаться от central directory
+        int data = loc + LOC_SIZE + (buf.getShort(loc + 26) & 0xFFFF) + (buf.getShort(loc + 28) & 0xFFFF);
+        if (data > limit || e.compressedSize > limit - data
+                || (e.method == STORED && e.size != e.compressedSize)) {
+            throw new IOException(e.name + ": данные записи за концом файла");
+        }
+        if (e.size > Integer.MAX_VALUE) {
+            throw new IOException(e.name + ": запись больше 2 ГБ не поддерживается");
+        }
+        byte[] out = new byte[(int) e.size];
+        // через Buffer: ByteBuffer.position(int) из Java 9+ нет в Java 8
+        ((Buffer) buf).position(data);
+        if (e.method == STORED) {
+            buf.get(out);
+            return out;
+        }
+        if (e.method != DEFLATED) {
+            throw new IOException(e.name + ": неизвестный метод сжатия " + e.method);
+        }
+
+        // Java 8 не умеет Inflater.setInput(ByteBuffer) — сжатые байты копируются в буфер потока
+        byte[][] holder = INPUT.get();
+        int compressed = (int) e.compressedSize;
+        if (holder[0].length < compressed + 1) {
+            holder[0] = new byte[Math.max(compressed + 1, holder[0].length * 2)];
+        }
+        byte[] in = holder[0];
+        buf.get(in, 0, compressed);
+        in[compressed] = 0; // лишний байт: nowrap-инфлейтеру он нужен, чтобы увидеть конец потока
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(in, 0, compressed + 1);
+        try {
+            int n = 0;
+            while (n < out.length) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != out.length) {
+                throw new IOException(e.name + ": распаковано " + n + " байт из " + out.length);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(e.name + ": " + ex.getMessage(), ex);
+        }
+        return out;
+    }
+
+    // jar больше 2 ГБ: запись распаковывает ZipFile
+    private byte[] readZip(Entry e) throws IOException {
+        ZipEntry z = zip.getEntry(e.name);
+        if (z == null) {
+            throw new IOException(e.name + ": запись не найдена");
+        }
+        if (e.size < 0 || e.size > Integer.MAX_VALUE) {
+            throw new IOException(e.name + ": запись больше 2 ГБ не поддерживается");
+        }
+        byte[] out = new byte[(int) e.size];
+        try (InputStream in = zip.getInputStream(z)) {
+            int n = 0;
+            while (n < out.length) {
+                int r = in.read(out, n, out.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != out.length) {
+                throw new IOException(e.name + ": распаковано " + n + " байт из " + out.length);
+            }
+        }
+        return out;
+    }
+
+    private static List<Entry> zipEntries(ZipFile zip) {
+        List<Entry> r = new ArrayList<>(zip.size());
+        for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements(); ) {
+            ZipEntry z = en.nextElement();
+            r.add(new Entry(z.getName(), z.getMethod(), 0, z.getCompressedSize(), z.getSize(), -1));
+        }
+        return Collections.unmodifiableList(r);
+    }
+
+    /**
+     * Байты записи по имени или null, если её нет.
+     */
+    byte[] read(String name) throws IOException {
+        Entry e = entry(name);
+        return e == null ? null : read(e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // отображение освобождается сборщиком мусора; канал закрывается сразу
+        if (channel != null) {
+            channel.close();
+        }
+        if (zip != null) {
+            zip.close();
+        }
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        // 1) End of central directory: последняя запись файла, за ней — комментарий до 64 КБ
+        int end = map.limit();
+        int eocd = -1;
+        for (int p = end - EOCD_SIZE; p >= Math.max(0, end - EOCD_SIZE - 0xFFFF); p--) {
+            if (map.getInt(p) == EOCD_SIG) {
+                eocd = p;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException(file + ": не zip-файл");
+        }
+        long total = map.getShort(eocd + 10) & 0xFFFF;
+        long cenSize = map.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cenOffset = map.getInt(eocd + 16) & 0xFFFFFFFFL;
+        // zip64: перед EOCD лежит локатор, он указывает на zip64 EOCD с настоящими числом записей,
+        // размером и смещением central directory. Без локатора 0xFFFF записей — обычный zip
+        int locator = eocd - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && map.getInt(locator) == ZIP64_LOCATOR_SIG) {
+            long record = map.getLong(locator + 8);
+            if (record < 0 || record > locator - ZIP64_EOCD_SIZE || map.getInt((int) record) != ZIP64_EOCD_SIG) {
+                throw new IOException(file + ": повреждённый zip64 end of central directory");
+            }
+            total = map.getLong((int) record + 32);
+            cenSize = map.getLong((int) record + 40);
+            cenOffset = map.getLong((int) record + 48);
+        }
+        if (total < 0 || total > Integer.MAX_VALUE || cenOffset < 0 || cenSize < 0
+                || cenOffset > end || cenSize > end - cenOffset) {
+            throw new IOException(file + ": повреждённый central directory");
+        }
+
+        // 2) Central directory: имена, методы, размеры и смещения всех записей
+        List<Entry> r = new ArrayList<>((int) total);
+        int p = (int) cenOffset;
+        int cenEnd = (int) (cenOffset + cenSize);
+        for (int i = 0; i < total; i++) {
+            if (p > cenEnd - CEN_SIZE || map.getInt(p) != CEN_SIG) {
+                throw new IOException(file + ": повреждённый central directory");
+            }
+            int flags = map.getShort(p + 8) & 0xFFFF;
+            int method = map.getShort(p + 10) & 0xFFFF;
+            long compressedSize = map.getInt(p + 20) & 0xFFFFFFFFL;
+            long size = map.getInt(p + 24) & 0xFFFFFFFFL;
+            int nameLength = map.getShort(p + 28) & 0xFFFF;
+            int extraLength = map.getShort(p + 30) & 0xFFFF;
+            int commentLength = map.getShort(p + 32) & 0xFFFF;
+            long localOffset = map.getInt(p + 42) & 0xFFFFFFFFL;
+            if (nameLength + extraLength > cenEnd - p - CEN_SIZE) {
+                throw new IOException(file + ": повреждённый central directory");
+            }
+            // zip64 extra: 8-байтовые размер, сжатый размер и смещение — только для полей 0xFFFFFFFF
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localOffset == ZIP64_MAGIC) {
+                int x = p + CEN_SIZE + nameLength;
+                int xEnd = x + extraLength;
+                while (x + 4 <= xEnd) {
+                    int id = map.getShort(x) & 0xFFFF;
+                    int length = map.getShort(x + 2) & 0xFFFF;
+                    int f = x + 4;
+                    if (id == ZIP64_EXTRA) {
+                        if (size == ZIP64_MAGIC && f + 8 <= xEnd) {
+                            size = map.getLong(f);
+                            f += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC && f + 8 <= xEnd) {
+                            compressedSize = map.getLong(f);
+                            f += 8;
+                        }
+                        if (localOffset == ZIP64_MAGIC && f + 8 <= xEnd) {
+                            localOffset = map.getLong(f);
+                        }
+                        break;
+                    }
+                    x = f + length;
+                }
+            }
+            byte[] name = new byte[nameLength];
+            ByteBuffer buf = map.duplicate();
+            ((Buffer) buf).position(p + CEN_SIZE);
+            buf.get(name);
+            r.add(new Entry(new String(name, StandardCharsets.UTF_8), method, flags, compressedSize, size, localOffset));
+            p += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        return Collections.unmodifiableList(r);
+    }
+}
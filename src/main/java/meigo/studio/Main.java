@@ -1,15 +1,17 @@
 package meigo.studio;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.io.PrintStream;
+import java.io.StringWriter;
 import java.util.*;
-import java.util.jar.JarFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -19,20 +21,69 @@ public class Main {
     private static final String ANSI_YELLOW = "\u001B[33m";
     private static final String ANSI_RESET  = "\u001B[0m";
 
-    private static class MethodInfo {
+    /** Имя PHP-конструктора: под ним в MethodInfo записываются публичные конструкторы класса */
+    static final String CONSTRUCTOR = "__construct";
+
+    static class MethodInfo {
         String typeLabel;
         String className;
         String signature;
         boolean isStatic;
-        MethodInfo(String t, String c, String s, boolean st) {
-            this.typeLabel = t;
-            this.className = c;
-            this.signature = s;
-            this.isStatic  = st;
+        String descriptor;       // исходный JVM-дескриптор, (Ljava/lang/String;I)Z
+        boolean inInterface;     // метод объявлен в интерфейсе
+        MethodInfo(String t, String c, String s, boolean st, String d, boolean itf) {
+            this.typeLabel   = t;
+            this.className   = c;
+            this.signature   = s;
+            this.isStatic    = st;
+            this.descriptor  = d;
+            this.inInterface = itf;
+        }
+    }
+
+    /** Результат анализа одного класса */
+    static class ClassResult {
+        final String className;
+        final List<MethodInfo> methods = new ArrayList<>();
+        int declaredMethods;
+        boolean skipped;
+        String error;
+        String cacheKey;                 // null, если кеш выключен
+        ConversionCache.Entry cached;    // не null, если результат взят из кеша
+        /** Ответы индекса "тип из дескриптора — List?", от которых зависят метки методов */
+        final Map<String, Boolean> listTypes = new TreeMap<>();
+        ClassResult(String className) {
+            this.className = className;
+        }
+        static ClassResult skipped(String className) {
+            ClassResult r = new ClassResult(className);
+            r.skipped = true;
+            return r;
         }
     }
 
     public static void main(String[] args) throws IOException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (options.daemon) {
+            Daemon.serve(options);
+            return;
+        }
+        if (options.stop) {
+            System.exit(Daemon.request("", new String[] {"--stop"}));
+        }
+        if (options.batch != null) {
+            BatchConverter.run(options);
+            return;
+        }
+
         // 1) Сбор JAR-файлов из classpath
         String classpath = System.getProperty("java.class.path");
         String sep       = System.getProperty("path.separator");
@@ -47,7 +98,7 @@ public class Main {
                 .collect(Collectors.toList());
 
         if (jars.size() > 1) {
-            System.out.println("На данный момент, поддерживается только 1 библиотека");
+            System.out.println("На данный момент, поддерживается только 1 библиотека (для нескольких используйте --batch)");
             System.exit(1);
         }
         if (jars.isEmpty()) {
@@ -56,147 +107,263 @@ public class Main {
         }
 
         String jarPath = jars.get(0);
+        if (options.client) {
+            // конвертирует запущенный демон (--daemon), здесь только его лог
+            System.exit(Daemon.request(jarPath, args));
+        }
         System.out.println("Работаем с библиотекой: " + jarPath);
 
-        // 2) Извлечение имён классов
-        List<String> classNames = new ArrayList<>();
-        try (JarFile jar = new JarFile(jarPath)) {
-            jar.stream()
-                    .filter(e -> !e.isDirectory() && e.getName().endsWith(".class"))
-                    .forEach(e -> {
-                        String name = e.getName()
-                                .replace('/', '.')
-                                .replace('\\', '.')
-                                .replaceAll("\\.class$", "");
-                        if (!name.equals("module-info")) {
-                            classNames.add(name);
-                        }
-                    });
+        // лог буферизуется и сбрасывается один раз в конце, а не на каждой строке
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        try (JarReader jar = new JarReader(new File(jarPath))) {
+            ClassIndex index = new ClassIndex(ClassIndex.jarSource(jar), ClassIndex.systemSource());
+            convert(jar, jarPath, index, Collections.<File>emptyList(), null, options, out);
+        } finally {
+            out.flush();
         }
-        Collections.sort(classNames);
+    }
+
+    /**
+     * Полный цикл конвертации одной библиотеки: анализ, SUMMARY, PHP-заглушки и Java-обёртки.
+     * outRoot — куда складывать sdk/ и tmp/ (null — текущая папка), out — куда писать лог.
+     * index может быть общим для нескольких библиотек (пакетный режим), libraries — jar этих
+     * библиотек для компиляции обёрток (--compile).
+     * С --metrics после конвертации пишется JSON-отчёт (Metrics).
+     */
+    static void convert(JarReader jar, String jarPath, ClassIndex index, List<File> libraries, File outRoot,
+                        Options options, PrintStream out) throws IOException {
+        try (Metrics metrics = new Metrics(jarPath, options)) {
+            // в бандл и в classpath идёт тот же jar, что разбирается (у демона — его копия)
+            File library = jar.library();
+            // результат — россыпь файлов sdk/ и tmp/ или один .dnbundle (--bundle)
+            BundleOutput output = options.bundle
+                    ? new BundleOutput.Zip(bundleFile(jarPath, outRoot, options), library)
+                    : new BundleOutput.Directory(outRoot);
+            if (options.compile) {
+                // обёртки компилируются в процессе, против самой библиотеки и jphp-runtime
+                List<File> classpath = new ArrayList<>();
+                classpath.add(library);
+                classpath.addAll(libraries);
+                classpath.add(options.jphpRuntime);
+                // в потоковом режиме обёртки компилируются кусками по --stream=N, а не все в конце
+            output = new WrapperCompiler(output, classpath, out, options.stream ? options.streamWindow : 0);
+            }
+            try {
+                if (options.stream) {
+                    StreamingConverter.convert(jar, index, output, options, out, metrics);
+                } else {
+                    convertFull(jar, jarPath, index, output, options, out, metrics);
+                }
+            } finally {
+                output.close();
+            }
+            if (options.metricsFile != null) {
+                File report = metricsFile(outRoot, options);
+                metrics.write(report);
+                out.println("METRICS: " + report.getPath());
+            }
+        }
+    }
+
+    /**
+     * Путь отчёта: --metrics=file для одной библиотеки, в пакетном режиме — файл с тем же
+     * именем в папке библиотеки.
+     */
+    private static File metricsFile(File outRoot, Options options) {
+        if (options.batch == null) {
+            return options.metricsFile;
+        }
+        return outFile(outRoot, options.metricsFile.getName());
+    }
+
+    /**
+     * Путь .dnbundle: явный --bundle=file для одной библиотеки, иначе <имя jar>.dnbundle в outRoot.
+     */
+    private static File bundleFile(String jarPath, File outRoot, Options options) {
+        if (options.bundleFile != null && options.batch == null) {
+            return options.bundleFile;
+        }
+        String name = new File(jarPath).getName().replaceAll("(?i)\\.jar$", "");
+        return outFile(outRoot, name + ".dnbundle");
+    }
 
-        // 3) Загрузка и сбор SUMMARY + статистика
-        URL jarUrl = new File(jarPath).toURI().toURL();
+    /**
+     * Обычный режим: сначала анализ всех классов и SUMMARY, затем генерация.
+     * С --quiet строки на каждый класс и метод (и сам SUMMARY) не печатаются.
+     */
+    private static void convertFull(JarReader jar, String jarPath, ClassIndex index, BundleOutput output,
+                                    Options options, PrintStream out, Metrics metrics) throws IOException {
+        PrintStream detail = options.quiet ? Metrics.SILENT : out;
+
+        // 2) Извлечение имён классов
+        long phase = System.nanoTime();
+        List<String> classNames = listClassNames(jar, options.filter, metrics);
+        metrics.phase("enumerate", phase);
         List<MethodInfo> summary = new ArrayList<>();
         int totalMethods = 0;
         int compatibleMethods = 0;
         Set<String> classesWithCompatible = new LinkedHashSet<>();
+        List<ClassResult> results;
+        ConversionCache cache = options.cache;
 
-        try (URLClassLoader loader = new URLClassLoader(new URL[]{jarUrl}, Main.class.getClassLoader())) {
-            for (String clsName : classNames) {
-                // пропускаем внутренние классы
-                if (clsName.contains("$")) {
-                    System.out.printf("Skipping inner class: %s%n", clsName);
+        // 3) Разбор .class файлов и сбор SUMMARY + статистика.
+        // Классы не загружаются: модификаторы, имена и дескрипторы читаются из байткода,
+        // поэтому отсутствие зависимостей в classpath не мешает анализу.
+        // Классы анализируются параллельно (--threads), а результаты сливаются
+        // строго в порядке classNames — вывод совпадает с последовательным запуском.
+        phase = System.nanoTime();
+        results = analyzeClasses(jar, index, classNames, options.threads, cache);
+        metrics.phase("analyze", phase);
+
+        // 3a) С --entry остаются только классы, достижимые из точек входа (Reachability).
+        // Сами результаты анализа не меняются — в кеш попадает полный список методов.
+        Reachability.Result reachable = options.entries == null ? null
+                : Reachability.reachable(results, options.entries, index);
+        for (ClassResult r : results) {
+            printClassResult(r, detail);
+            metrics.classResult(r);
+            if (r.skipped) {
+                continue;
+            }
+            totalMethods += r.declaredMethods;
+            if (reachable != null && !r.methods.isEmpty() && !reachable.keepsClass(r.className)) {
+                metrics.skip("недостижим из --entry");
+            }
+            for (MethodInfo info : r.methods) {
+                if (reachable != null && !reachable.keeps(info)) {
                     continue;
                 }
-                System.out.println(clsName);
-                System.out.println("Methods:");
-                try {
-                    Class<?> cls = Class.forName(clsName, false, loader);
-                    for (Method m : cls.getDeclaredMethods()) {
-                        totalMethods++;
-                        if (!Modifier.isPublic(m.getModifiers())) {
-                            continue;
-                        }
-                        boolean isStatic = Modifier.isStatic(m.getModifiers());
-
-                        // Определяем возвращаемый тип
-                        Class<?> rt = m.getReturnType();
-                        String typeLabel;
-                        if (rt.equals(void.class)) {
-                            typeLabel = "VOID";
-                        } else if (rt.equals(String.class)) {
-                            typeLabel = "STRING";
-                        } else if (rt.equals(int.class) || rt.equals(Integer.class)) {
-                            typeLabel = "INT";
-                        } else if (rt.equals(long.class) || rt.equals(Long.class)) {
-                            typeLabel = "LONG";
-                        } else if (rt.equals(boolean.class) || rt.equals(Boolean.class)) {
-                            typeLabel = "BOOL";
-                        } else if (rt.getSimpleName().equals("Memory")) {
-                            typeLabel = "ANY";
-                        } else if (rt.getSimpleName().equals("ArrayMemory")
-                                || rt.isArray()
-                                || List.class.isAssignableFrom(rt)) {
-                            typeLabel = "LIST";
-                        } else {
-                            continue; // не поддерживаемый тип
-                        }
+                summary.add(info);
+                compatibleMethods++;
+                classesWithCompatible.add(info.className);
+            }
+        }
 
-                        // Обрабатываем параметры, пропуская Environment
-                        Class<?>[] pts = m.getParameterTypes();
-                        List<String> paramTypes = new ArrayList<>();
-                        for (Class<?> p : pts) {
-                            String pn = p.getSimpleName();
-                            if (pn.equals("Environment")) {
-                                continue;
-                            }
-                            if (pn.equals("Memory")) {
-                                paramTypes.add("any");
-                            } else if (pn.equals("ArrayMemory")
-                                    || p.isArray()
-                                    || List.class.isAssignableFrom(p)) {
-                                paramTypes.add("array");
-                            } else {
-                                String simple = pn.toLowerCase();
-                                switch (simple) {
-                                    case "string":
-                                        paramTypes.add("string");
-                                        break;
-                                    case "int":
-                                        paramTypes.add("int");
-                                        break;
-                                    case "long":
-                                        paramTypes.add("long");
-                                        break;
-                                    case "boolean":
-                                        paramTypes.add("bool");
-                                        break;
-                                    default:
-                                        paramTypes.add("any");
-                                        break;
-                                }
-                            }
-                        }
+        int totalFiles = classNames.size();
+        int convertedFiles = classesWithCompatible.size();
+        metrics.convertedClasses = convertedFiles;
+        metrics.compatibleMethods = compatibleMethods;
+
+        // 4) Печать SUMMARY
+        if (!options.quiet) {
+            out.println("SUMMARY:");
+            for (MethodInfo info : summary) {
+                String staticMarker = info.isStatic
+                        ? " " + ANSI_YELLOW + "[STATIC]" + ANSI_RESET
+                        : "";
+                out.printf("%s %s.%s%s%n",
+                        info.typeLabel, info.className, info.signature, staticMarker);
+            }
+        }
 
-                        // Формируем сигнатуру
-                        String sig = m.getName() + "(" + String.join(", ", paramTypes) + ")";
+        // Уже сгенерированные тексты для классов, взятых из кеша
+        Map<String, String> cachedPhp = new HashMap<>();
+        Map<String, String> cachedJava = new HashMap<>();
+        for (ClassResult r : results) {
+            // от класса, оставленного частично, готовые тексты не подходят
+            boolean whole = reachable == null || reachable.keepsWhole(r.className);
+            if (r.cached != null && r.cached.phpStub != null && whole) {
+                cachedPhp.put(r.className, r.cached.phpStub);
+                cachedJava.put(r.className, r.cached.javaWrapper);
+            }
+        }
 
-                        // Сохраняем в SUMMARY и печатаем
-                        summary.add(new MethodInfo(typeLabel, clsName, sig, isStatic));
-                        compatibleMethods++;
-                        classesWithCompatible.add(clsName);
+        // 5) Генерация PHP обёрток
+        phase = System.nanoTime();
+        Map<String, String> php = generatePhpWrappers(summary, cachedPhp, options.batchCalls, options.bytecode, output, detail);
+        metrics.phase("php", phase);
 
-                        String staticMarker = isStatic
-                                ? " " + ANSI_YELLOW + "[STATIC]" + ANSI_RESET
-                                : "";
-                        System.out.printf("  %sCOMPATIBLE %s.%s %s%s%n",
-                                ANSI_GREEN, clsName, sig, typeLabel, staticMarker);
-                    }
-                } catch (Throwable t) {
-                    System.out.println("  (не удалось загрузить класс)");
+        // 6) Статистика
+        printStats(compatibleMethods, convertedFiles, totalFiles, totalMethods, out);
+
+        // 7) Подготовка Java-оберток
+        phase = System.nanoTime();
+        Map<String, String> java = PrepareJavaWrappers(jarPath, summary, cachedJava, options, output, detail);
+        metrics.phase("java", phase);
+
+        // 8) Сохраняем в кеш всё, что было посчитано заново
+        if (cache != null) {
+            int hits = 0;
+            for (ClassResult r : results) {
+                if (r.cached != null) {
+                    hits++;
+                } else if (r.cacheKey != null && r.error == null) {
+                    boolean whole = reachable == null || reachable.keepsWhole(r.className);
+                    cache.put(r.cacheKey, new ConversionCache.Entry(r.declaredMethods, r.methods, r.listTypes,
+                            whole ? php.get(r.className) : null, whole ? java.get(r.className) : null));
                 }
-                System.out.println();
             }
+            out.println("CACHE HITS: " + hits + " / " + (totalFiles - skippedFiles(results)));
         }
 
-        int totalFiles = classNames.size();
-        int convertedFiles = classesWithCompatible.size();
+    }
 
-        // 4) Печать SUMMARY
-        System.out.println("SUMMARY:");
-        for (MethodInfo info : summary) {
+    /**
+     * Имена всех классов jar-файла (com.example.Foo), отсортированные, без module-info.
+     * Берутся из central directory, сами записи не читаются.
+     */
+    static List<String> listClassNames(JarReader jar) {
+        return listClassNames(jar, ClassFilter.ALL, null);
+    }
+
+    /**
+     * То же, но без классов, отброшенных filter (CONVERT_IGNORE/--include): их байты не читаются
+     * вовсе. metrics (может быть null) получает общее число классов и причины пропуска.
+     */
+    static List<String> listClassNames(JarReader jar, ClassFilter filter, Metrics metrics) {
+        List<String> classNames = new ArrayList<>();
+        for (JarReader.Entry e : jar.entries()) {
+            if (e.name.endsWith("/") || !e.name.endsWith(".class")) {
+                continue;
+            }
+            String name = e.name
+                    .replace('/', '.')
+                    .replace('\\', '.')
+                    .substring(0, e.name.length() - ".class".length());
+            if (name.equals("module-info")) {
+                continue;
+            }
+            String reject = filter.reject(name);
+            if (metrics != null) {
+                metrics.classes++;
+                if (reject != null) {
+                    metrics.skip(reject);
+                }
+            }
+            if (reject == null) {
+                classNames.add(name);
+            }
+        }
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    /**
+     * Печатает результат анализа одного класса: имя и совместимые методы.
+     */
+    static void printClassResult(ClassResult r, PrintStream out) {
+        // пропускаем внутренние классы
+        if (r.skipped) {
+            out.printf("Skipping inner class: %s%n", r.className);
+            return;
+        }
+        out.println(r.className);
+        out.println("Methods:");
+        for (MethodInfo info : r.methods) {
             String staticMarker = info.isStatic
                     ? " " + ANSI_YELLOW + "[STATIC]" + ANSI_RESET
                     : "";
-            System.out.printf("%s %s.%s%s%n",
-                    info.typeLabel, info.className, info.signature, staticMarker);
+            out.printf("  %sCOMPATIBLE %s.%s %s%s%n",
+                    ANSI_GREEN, info.className, info.signature, info.typeLabel, staticMarker);
         }
+        if (r.error != null) {
+            out.println("  (не удалось прочитать класс: " + r.error + ")");
+        }
+        out.println();
+    }
 
-        // 5) Генерация PHP обёрток
-        generatePhpWrappers(summary);
-
-        // 6) Статистика
+    static void printStats(int compatibleMethods, int convertedFiles, int totalFiles, int totalMethods,
+                           PrintStream out) {
         int compatiblePercent = totalMethods > 0
                 ? compatibleMethods * 100 / totalMethods
                 : 0;
@@ -204,21 +371,230 @@ public class Main {
                 ? convertedFiles * 100 / totalFiles
                 : 0;
 
-        System.out.println();
-        System.out.println("COMPATIBLE METHODS: " + compatibleMethods + " (" + compatiblePercent + "%)");
-        System.out.println("CONVERTED FILES: " + convertedFiles + " (" + convertedPercent + "%)");
-        System.out.println("TOTAL FILES: " + totalFiles);
-        System.out.println("TOTAL METHODS: " + totalMethods);
+        out.println();
+        out.println("COMPATIBLE METHODS: " + compatibleMethods + " (" + compatiblePercent + "%)");
+        out.println("CONVERTED FILES: " + convertedFiles + " (" + convertedPercent + "%)");
+        out.println("TOTAL FILES: " + totalFiles);
+        out.println("TOTAL METHODS: " + totalMethods);
+    }
 
-        // 7) Подготовка Java-оберток
-        PrepareJavaWrappers(jarPath, summary);
+    /**
+     * Анализирует классы в threads потоков. Список результатов идёт в том же порядке,
+     * что и classNames, независимо от того, в каком порядке завершились задачи.
+     */
+    static List<ClassResult> analyzeClasses(final JarReader jar, final ClassIndex index,
+                                            List<String> classNames, int threads,
+                                            final ConversionCache cache) throws IOException {
+        List<ClassResult> results = new ArrayList<>(classNames.size());
+        if (threads <= 1) {
+            for (String clsName : classNames) {
+                results.add(analyzeClass(jar, index, clsName, cache));
+            }
+            return results;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "jtj-analyze");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<ClassResult>> futures = new ArrayList<>(classNames.size());
+            for (final String clsName : classNames) {
+                futures.add(pool.submit(() -> analyzeClass(jar, index, clsName, cache)));
+            }
+            for (Future<ClassResult> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("анализ прерван", e);
+        } catch (ExecutionException e) {
+            throw new IOException("ошибка анализа", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Разбирает один класс из jar и собирает его совместимые методы.
+     * Ничего не печатает и не трогает общее состояние, поэтому безопасна для параллельного вызова.
+     * Если класс с такими же байтами уже есть в кеше, разбор пропускается.
+     */
+    private static ClassResult analyzeClass(JarReader jar, ClassIndex index, String clsName, ConversionCache cache) {
+        // пропускаем внутренние классы
+        if (clsName.contains("$")) {
+            return ClassResult.skipped(clsName);
+        }
+        byte[] bytes;
+        try {
+            bytes = jar.read(clsName.replace('.', '/') + ".class");
+        } catch (IOException e) {
+            ClassResult r = new ClassResult(clsName);
+            r.error = e.getMessage();
+            return r;
+        }
+        return analyzeClass(index, clsName, bytes, cache);
+    }
+
+    /**
+     * То же по уже прочитанным байтам класса.
+     */
+    static ClassResult analyzeClass(ClassIndex index, String clsName, byte[] bytes, ConversionCache cache) {
+        ClassResult r = new ClassResult(clsName);
+        try {
+            if (cache != null) {
+                r.cacheKey = cache.key(bytes);
+                ConversionCache.Entry hit = cache.get(r.cacheKey, clsName);
+                // запись годится, только если предки типов из сигнатур не изменились
+                if (hit != null && hit.matches(index)) {
+                    r.cached = hit;
+                    r.declaredMethods = hit.declaredMethods;
+                    r.methods.addAll(hit.methods);
+                    return r;
+                }
+            }
+            ClassFileReader.ClassInfo cls = ClassFileReader.read(bytes);
+            index.put(cls);
+            boolean concrete = (cls.access & (ClassFileReader.ACC_INTERFACE | ClassFileReader.ACC_ABSTRACT)) == 0;
+            for (ClassFileReader.MethodEntry m : cls.methods) {
+                // конструкторы и статический инициализатор не входят в getDeclaredMethods()
+                if (m.name.equals("<clinit>")) {
+                    continue;
+                }
+                if (m.name.equals("<init>")) {
+                    // публичные конструкторы конкретного класса становятся __construct обёртки
+                    // и считаются в declaredMethods, чтобы совместимых не было больше объявленных
+                    if (concrete && (m.access & ClassFileReader.ACC_PUBLIC) != 0) {
+                        r.declaredMethods++;
+                        r.methods.add(new MethodInfo("VOID", clsName, CONSTRUCTOR + "(" + paramLabels(m.descriptor) + ")",
+                                false, m.descriptor, false));
+                    }
+                    continue;
+                }
+                r.declaredMethods++;
+                if ((m.access & ClassFileReader.ACC_PUBLIC) == 0) {
+                    continue;
+                }
+                boolean isStatic = (m.access & ClassFileReader.ACC_STATIC) != 0;
+
+                // Определяем возвращаемый тип
+                String typeLabel = returnTypeLabel(ClassFileReader.returnType(m.descriptor), index, r.listTypes);
+                if (typeLabel == null) {
+                    continue; // не поддерживаемый тип
+                }
+
+                // Формируем сигнатуру
+                String sig = m.name + "(" + paramLabels(m.descriptor) + ")";
+                r.methods.add(new MethodInfo(typeLabel, clsName, sig, isStatic, m.descriptor,
+                        (cls.access & ClassFileReader.ACC_INTERFACE) != 0));
+            }
+        } catch (IOException e) {
+            r.error = e.getMessage();
+        }
+        return r;
+    }
+
+    /**
+     * Типы параметров для подписи метода, без Environment: "string, int".
+     */
+    private static String paramLabels(String descriptor) {
+        List<String> paramTypes = new ArrayList<>();
+        for (String p : ClassFileReader.parameterTypes(descriptor)) {
+            if (isEnvironment(p)) {
+                continue;
+            }
+            // типы сравниваются по полному имени: класс библиотеки Memory или String — просто объект
+            switch (p) {
+                case "Ljava/lang/String;":
+                    paramTypes.add("string");
+                    break;
+                case "I":
+                    paramTypes.add("int");
+                    break;
+                case "J":
+                case "Ljava/lang/Long;":
+                    paramTypes.add("long");
+                    break;
+                case "Z":
+                case "Ljava/lang/Boolean;":
+                    paramTypes.add("bool");
+                    break;
+                default:
+                    // наследники List и прочие массивы приходят объектом (any): PHP-массив в них не превратить
+                    paramTypes.add(Marshalling.acceptsArray(p) ? "array" : "any");
+                    break;
+            }
+        }
+        return String.join(", ", paramTypes);
+    }
+
+    private static int skippedFiles(List<ClassResult> results) {
+        int n = 0;
+        for (ClassResult r : results) {
+            if (r.skipped) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Метка возвращаемого типа по дескриптору, null — тип не поддерживается.
+     */
+    private static String returnTypeLabel(String t, ClassIndex index, Map<String, Boolean> listTypes) {
+        switch (t) {
+            case "V":
+                return "VOID";
+            case "Ljava/lang/String;":
+                return "STRING";
+            case "I":
+            case "Ljava/lang/Integer;":
+                return "INT";
+            case "J":
+            case "Ljava/lang/Long;":
+                return "LONG";
+            case "Z":
+            case "Ljava/lang/Boolean;":
+                return "BOOL";
+        }
+        // по полному имени: класс библиотеки с именем Memory — не php.runtime.Memory
+        if (t.equals(Marshalling.MEMORY_D)) {
+            return "ANY";
+        }
+        if (t.equals("L" + Marshalling.ARRAY_MEMORY + ";") || isArrayOrList(t, index, listTypes)) {
+            return "LIST";
+        }
+        return null;
+    }
 
+    /**
+     * Аналог rt.isArray() || List.class.isAssignableFrom(rt) для типа из дескриптора.
+     * Ответ по объектному типу запоминается в listTypes — кеш перепроверяет его при попадании.
+     */
+    private static boolean isArrayOrList(String t, ClassIndex index, Map<String, Boolean> listTypes) {
+        if (t.startsWith("[")) {
+            return true;
+        }
+        if (!t.startsWith("L")) {
+            return false;
+        }
+        String name = t.substring(1, t.length() - 1);
+        boolean list = index.isSubtypeOf(name, ConversionCache.LIST);
+        listTypes.put(name, list);
+        return list;
     }
 
     /**
      * Генерирует для каждого класса из summary PHP-файл в папке sdk/...
+     * Тексты из prerendered (взятые из кеша) записываются как есть, без повторной генерации.
+     * Возвращает тексты всех записанных файлов по имени класса.
      */
-    private static void generatePhpWrappers(List<MethodInfo> summary) throws IOException {
+    private static Map<String, String> generatePhpWrappers(List<MethodInfo> summary,
+                                                           Map<String, String> prerendered, boolean batchCalls,
+                                                           boolean bytecode, BundleOutput output,
+                                                           PrintStream out) throws IOException {
         // Группируем по классу
         Map<String, List<MethodInfo>> byClass = new LinkedHashMap<>();
         for (MethodInfo mi : summary) {
@@ -228,258 +604,545 @@ public class Main {
             byClass.get(mi.className).add(mi);
         }
 
-        File sdkRoot = new File("sdk");
-        if (!sdkRoot.exists()) {
-            sdkRoot.mkdir();
-        }
+        Map<String, String> rendered = new HashMap<>();
 
         for (Map.Entry<String, List<MethodInfo>> kv : byClass.entrySet()) {
             String fullClass = kv.getKey(); // e.g. com.example.Outer or com.example.Outer$Inner
-            List<MethodInfo> methods = kv.getValue();
-
-            // Определяем пути и имена для PHP
-            String phpNamespace;
-            String phpClassName;
-            File phpFile;
-            if (fullClass.contains("$")) {
-                // inner
-                String outer = fullClass.substring(0, fullClass.indexOf('$'));
-                String inner = fullClass.substring(fullClass.indexOf('$') + 1);
-                String[] pkg = outer.split("\\.");
-                String pkgPath = String.join(File.separator, pkg);
-                File outerDir = new File(sdkRoot, pkgPath + File.separator + pkg[pkg.length - 1]);
-                outerDir.mkdirs();
-                phpFile = new File(outerDir, inner + ".php");
-
-                phpNamespace = outer.replace('.', '\\');
-                phpClassName = inner;
-            } else {
-                // normal
-                String[] parts = fullClass.split("\\.");
-                phpClassName = parts[parts.length - 1];
-                String[] pkg = Arrays.copyOf(parts, parts.length - 1);
-                String pkgPath = String.join(File.separator, pkg);
-                File dir = new File(sdkRoot, pkgPath);
-                dir.mkdirs();
-                phpFile = new File(dir, phpClassName + ".php");
-
-                phpNamespace = String.join("\\", pkg);
-            }
-
-            try (BufferedWriter w = new BufferedWriter(new FileWriter(phpFile))) {
-                w.write("<?php\n");
+            rendered.put(fullClass, writePhpStub(fullClass, kv.getValue(), prerendered.get(fullClass), batchCalls,
+                    bytecode, output, out));
+        }
+        return rendered;
+    }
+
+    /**
+     * Повторяет оригинальные Java-классы, создавая обёртки в ./tmp/javaprepare/JTJ
+     * Тексты обёрток из prerendered (взятые из кеша) записываются как есть.
+     * Возвращает тексты всех обёрток по имени класса (без Extension-класса).
+     */
+    private static Map<String, String> PrepareJavaWrappers(String jarPath, List<MethodInfo> summary,
+                                                           Map<String, String> prerendered, Options options,
+                                                           BundleOutput output, PrintStream out) throws IOException {
+        // Группируем методы по оригинальному классу
+        Map<String, List<MethodInfo>> byClass = new LinkedHashMap<>();
+        for (MethodInfo mi : summary) {
+            byClass.computeIfAbsent(mi.className, k -> new ArrayList<>()).add(mi);
+        }
+
+        // 1) Для каждого оригинального Java-класса — генерим wrapper
+        Map<String, String> rendered = new HashMap<>();
+        for (Map.Entry<String, List<MethodInfo>> entry : byClass.entrySet()) {
+            String fullClass = entry.getKey();               // e.g. com.example.Outer
+            if (options.bytecode) {
+                // сразу .class, исходника нет — кешировать нечего
+                BytecodeWrappers.writeWrapper(fullClass, entry.getValue(), options.batchCalls, output, out);
+                continue;
+            }
+            rendered.put(fullClass, writeJavaWrapper(fullClass, entry.getValue(), prerendered.get(fullClass),
+                    options.batchCalls, output, out));
+        }
+
+        // 2) Теперь Marshal, главный Extension-класс и метаданные бандла
+        finishWrappers(byClass.keySet(), options, output, out);
+        return rendered;
+    }
+
+    /**
+     * Пишет PHP-заглушку одного класса в output и возвращает её текст.
+     * prerendered — текст из кеша (тогда он записывается как есть) или null;
+     * batchCalls — добавить nameBatch к статическим методам (см. batchName);
+     * bytecode — обёртка пишется байткодом: в заглушке те же методы, что wrappable оставит в обёртке.
+     */
+    static String writePhpStub(String fullClass, List<MethodInfo> methods, String prerendered, boolean batchCalls,
+                               boolean bytecode, BundleOutput output, PrintStream out) throws IOException {
+
+        // Определяем пути и имена для PHP
+        String phpNamespace;
+        String phpClassName;
+        String phpPath;
+        if (fullClass.contains("$")) {
+            // inner
+            String outer = fullClass.substring(0, fullClass.indexOf('$'));
+            String inner = fullClass.substring(fullClass.indexOf('$') + 1);
+            String[] pkg = outer.split("\\.");
+            phpPath = String.join("/", pkg) + "/" + pkg[pkg.length - 1] + "/" + inner + ".php";
+
+            phpNamespace = outer.replace('.', '\\');
+            phpClassName = inner;
+        } else {
+            // normal
+            String[] parts = fullClass.split("\\.");
+            phpClassName = parts[parts.length - 1];
+            String[] pkg = Arrays.copyOf(parts, parts.length - 1);
+            phpPath = pkg.length == 0
+                    ? phpClassName + ".php"
+                    : String.join("/", pkg) + "/" + phpClassName + ".php";
+
+            phpNamespace = String.join("\\", pkg);
+        }
+
+        String text = prerendered;
+        if (text == null) {
+            StringWriter w = new StringWriter();
+            w.write("<?php\n");
+            if (!phpNamespace.isEmpty()) {
                 w.write("namespace " + phpNamespace + ";\n\n");
-                w.write("/**\n");
-                w.write(" * This class was automatically created using JavaToJPHP (github.com/meigoc)\n");
-                w.write(" * The original Java class: " + fullClass + "\n");
-                w.write(" */\n\n");
-                w.write("/**\n");
-                w.write(" * Class " + phpClassName + "\n");
-                w.write(" */\n");
-                w.write("class " + phpClassName + "\n{\n");
-
-                for (MethodInfo mi : methods) {
-                    // PHP-докблок
-                    w.write("    /**\n");
-                    w.write("     * JavaToJPHP Generated Bundle\n");
-                    // @param
-                    String argsInside = mi.signature.substring(
-                            mi.signature.indexOf('(') + 1,
-                            mi.signature.indexOf(')')
-                    );
-                    String[] args = argsInside.isEmpty()
-                            ? new String[0]
-                            : argsInside.split(",\\s*");
-                    for (int i = 0; i < args.length; i++) {
-                        w.write("     * @param string $arg" + (i + 1) + "\n");
+            }
+            w.write("/**\n");
+            w.write(" * This class was automatically created using JavaToJPHP (github.com/meigoc)\n");
+            w.write(" * The original Java class: " + fullClass + "\n");
+            w.write(" */\n\n");
+            w.write("/**\n");
+            w.write(" * Class " + phpClassName + "\n");
+            w.write(" */\n");
+            w.write("class " + phpClassName + "\n{\n");
+
+            // перегрузки одного имени — один PHP-метод: лишние у длинных перегрузок аргументы необязательны;
+            // методы те же, что в обёртке, — про пропущенные SKIPPED напечатает её генератор
+            List<MethodInfo> wrapped = wrappable(fullClass, methods, bytecode, Metrics.SILENT);
+            Map<String, List<MethodInfo>> groups = Overloads.byName(wrapped);
+            Set<String> names = Overloads.byName(methods).keySet();
+            for (Map.Entry<String, List<MethodInfo>> e : groups.entrySet()) {
+                List<MethodInfo> group = e.getValue();
+                MethodInfo first = group.get(0);
+                int minArgs = Integer.MAX_VALUE;
+                int maxArgs = 0;
+                boolean isStatic = false;
+                String typeLabel = first.typeLabel;
+                for (MethodInfo mi : group) {
+                    int n = phpArgs(mi).length;
+                    minArgs = Math.min(minArgs, n);
+                    maxArgs = Math.max(maxArgs, n);
+                    isStatic |= mi.isStatic;
+                    if (!mi.typeLabel.equals(typeLabel)) {
+                        typeLabel = "ANY";
                     }
-                    // @return
-                    String phpRet;
-                    switch (mi.typeLabel) {
-                        case "VOID":
-                            phpRet = "void";
-                            break;
-                        case "STRING":
-                            phpRet = "string";
-                            break;
-                        case "INT":
-                        case "LONG":
-                            phpRet = "int";
-                            break;
-                        case "BOOL":
-                            phpRet = "bool";
-                            break;
-                        case "LIST":
-                            phpRet = "array";
-                            break;
-                        case "ANY":
-                        default:
-                            phpRet = "any";
-                            break;
+                }
+
+                // PHP-докблок
+                w.write("    /**\n");
+                w.write("     * JavaToJPHP Generated Bundle\n");
+                if (group.size() > 1) {
+                    for (MethodInfo mi : group) {
+                        w.write("     * " + mi.signature + "\n");
                     }
-                    w.write("     * @return " + phpRet + "\n");
-                    w.write("     */\n");
+                }
+                // @param
+                for (int i = 0; i < maxArgs; i++) {
+                    w.write("     * @param string $arg" + (i + 1) + "\n");
+                }
+                // @return
+                String phpRet;
+                switch (typeLabel) {
+                    case "VOID":
+                        phpRet = "void";
+                        break;
+                    case "STRING":
+                        phpRet = "string";
+                        break;
+                    case "INT":
+                    case "LONG":
+                        phpRet = "int";
+                        break;
+                    case "BOOL":
+                        phpRet = "bool";
+                        break;
+                    case "LIST":
+                        phpRet = "array";
+                        break;
+                    case "ANY":
+                    default:
+                        phpRet = "any";
+                        break;
+                }
+                w.write("     * @return " + phpRet + "\n");
+                w.write("     */\n");
 
-                    // Сигнатура метода
-                    w.write("    public ");
-                    if (mi.isStatic) {
-                        w.write("static ");
+                // Сигнатура метода
+                w.write("    public ");
+                if (isStatic) {
+                    w.write("static ");
+                }
+                w.write("function ");
+                w.write(e.getKey() + "(");
+                for (int i = 0; i < maxArgs; i++) {
+                    w.write("$arg" + (i + 1));
+                    if (i >= minArgs) {
+                        w.write(" = null");
                     }
-                    w.write("function ");
-                    String methodName = mi.signature.substring(0, mi.signature.indexOf('('));
-                    w.write(methodName + "(");
-                    for (int i = 0; i < args.length; i++) {
-                        w.write("$arg" + (i + 1));
-                        if (i < args.length - 1) {
-                            w.write(", ");
-                        }
+                    if (i < maxArgs - 1) {
+                        w.write(", ");
                     }
-                    w.write(") {}\n\n");
                 }
+                w.write(") {}\n\n");
 
-                w.write("}\n");
+                String batch = batchCalls && isStatic ? batchName(e.getKey(), names) : null;
+                if (batch != null) {
+                    w.write("    /**\n");
+                    w.write("     * JavaToJPHP Generated Bundle\n");
+                    w.write("     * Calls " + e.getKey() + "() once per tuple in a single PHP -> Java call\n");
+                    w.write("     * @param array $argTuples [[$arg1, $arg2, ...], ...]; a non-array item is a single argument\n");
+                    w.write("     * @return array results in the order of $argTuples\n");
+                    w.write("     */\n");
+                    w.write("    public static function " + batch + "(array $argTuples) {}\n\n");
+                }
             }
 
-            System.out.println("Generated: " + phpFile.getPath());
+            w.write("}\n");
+            text = w.toString();
         }
+        out.println("Generated: " + output.writePhp(phpPath, text));
+        return text;
+    }
+
+    // типы аргументов из подписи метода: "pad(String, int)" -> {"String", "int"}
+    private static String[] phpArgs(MethodInfo mi) {
+        String argsInside = mi.signature.substring(
+                mi.signature.indexOf('(') + 1,
+                mi.signature.indexOf(')')
+        );
+        return argsInside.isEmpty()
+                ? new String[0]
+                : argsInside.split(",\\s*");
     }
 
     /**
-     * Повторяет оригинальные Java-классы, создавая обёртки в ./tmp/javaprepare/JTJ
+     * Пишет Java-обёртку одного класса в output (JTJ/...) и возвращает её текст.
+     * prerendered — текст из кеша (тогда он записывается как есть) или null;
+     * batchCalls — добавить nameBatch к статическим методам (см. batchName).
      */
-    private static void PrepareJavaWrappers(String jarPath, List<MethodInfo> summary) throws IOException {
-        // Группируем методы по оригинальному классу
-        Map<String, List<MethodInfo>> byClass = new LinkedHashMap<>();
-        for (MethodInfo mi : summary) {
-            byClass.computeIfAbsent(mi.className, k -> new ArrayList<>()).add(mi);
-        }
+    static String writeJavaWrapper(String fullClass, List<MethodInfo> methods, String prerendered, boolean batchCalls,
+                                   BundleOutput output, PrintStream out) throws IOException {
+        String[] parts = fullClass.split("\\.");
+        String simpleName = parts[parts.length - 1];
+        String pkg       = String.join(".", Arrays.copyOf(parts, parts.length - 1));
+
+        // Внутри JTJ делаем директорию по package (класс из пакета по умолчанию — прямо в JTJ)
+        String javaPath = "JTJ/" + (pkg.isEmpty() ? "" : pkg.replace('.', '/') + "/") + simpleName + ".java";
+        String text = prerendered;
+        if (text == null) {
+            StringWriter w = new StringWriter();
+            // 2.1 package
+            w.write("package JTJ" + (pkg.isEmpty() ? "" : "." + pkg) + ";\n");
+            w.write("// Class created by JavaToJPHP (github.com/meigoc)\n\n");
 
-        // 1) Создаём корневую папку tmp/javaprepare/JTJ
-        File base = new File("tmp/javaprepare/JTJ");
-        if (!base.exists()) base.mkdirs();
+            // 2.2 импорты; исходный класс не импортируется — у него то же простое имя, что у обёртки
+            List<MethodInfo> wrapped = wrappable(fullClass, methods, false, out);
+            Set<String> names = Overloads.byName(methods).keySet();
+            boolean batches = false;
+            for (Map.Entry<String, List<MethodInfo>> e : Overloads.byName(wrapped).entrySet()) {
+                batches |= batchCalls && e.getValue().get(0).isStatic && batchName(e.getKey(), names) != null;
+            }
+            w.write("import php.runtime.Memory;\n");
+            w.write("import php.runtime.annotation.Reflection.Signature;\n");
+            w.write("import php.runtime.lang.BaseObject;\n");
+            w.write("import php.runtime.annotation.Reflection.Namespace;\n");
+            w.write("import php.runtime.reflection.ClassEntity;\n");
+            w.write("import php.runtime.env.Environment;\n");
+            if (batches) {
+                w.write("import php.runtime.lang.ForeachIterator;\n");
+                w.write("import php.runtime.memory.ArrayMemory;\n");
+            }
+            w.write("import JTJ.runtime.Holder;\n");
+            w.write("import JTJ.runtime.Marshal;\n\n");
 
-        // 2) Для каждого оригинального Java-класса — генерим wrapper
-        for (Map.Entry<String, List<MethodInfo>> entry : byClass.entrySet()) {
-            String fullClass = entry.getKey();               // e.g. com.example.Outer
-            List<MethodInfo> methods = entry.getValue();
-            String[] parts = fullClass.split("\\.");
-            String simpleName = parts[parts.length - 1];
-            String pkg       = String.join(".", Arrays.copyOf(parts, parts.length - 1));
-
-            // Внутри base делаем директорию по package
-            File outDir = new File(base, pkg.replace('.', File.separatorChar));
-            outDir.mkdirs();
-
-            File javaFile = new File(outDir, simpleName + ".java");
-            try (BufferedWriter w = new BufferedWriter(new FileWriter(javaFile))) {
-                // 2.1 package
-                w.write("package JTJ." + pkg + ";\n");
-                w.write("// Class created by JavaToJPHP (github.com/meigoc)\n\n");
-
-                // 2.2 импорты
-                w.write("import php.runtime.annotation.Reflection.Signature;\n");
-                w.write("import php.runtime.lang.BaseObject;\n");
-                w.write("import php.runtime.annotation.Reflection.Namespace;\n");
-                w.write("import php.runtime.reflection.ClassEntity;\n");
-                w.write("import php.runtime.env.Environment;\n");
-                w.write("import " + fullClass + ";\n\n");
-
-                // 2.3 объявление класса с двойным экранированием в Namespace
-                String nsEscaped = pkg.replace(".", "\\\\");
-                w.write("@Namespace(\"" + nsEscaped + "\")\n");
-                w.write("public class " + simpleName + " extends BaseObject {\n");
-                w.write("    public " + simpleName + "(Environment env) { super(env); }\n");
-                w.write("    protected " + simpleName + "(ClassEntity entity) { super(entity); }\n");
-                w.write("    public " + simpleName + "(Environment env, ClassEntity clazz) { super(env, clazz); }\n\n");
-
-                // 2.4 методы
-                for (int miIndex = 0; miIndex < methods.size(); miIndex++) {
-                    MethodInfo mi  = methods.get(miIndex);
-                    // Разбор параметров из mi.signature, который в виде "name(type1, type2)"
-                    String sig    = mi.signature;
-                    String name   = sig.substring(0, sig.indexOf('('));
-                    String inside = sig.substring(sig.indexOf('(') + 1, sig.indexOf(')'));
-                    String[] ptypes = inside.isEmpty() ? new String[0] : inside.split(",\\s*");
-
-                    // Докблок
-                    w.write("    @Signature\n");
-                    w.write("    public ");
-                    if (mi.isStatic) w.write("static ");
-                    // возвращаемый тип в нижнем регистре для Java-обёртки
-                    w.write(mi.typeLabel.toLowerCase() + " ");
-                    // сигнатура Java: (ТипJava argN, ...)
-                    w.write(name + " (");
-                    for (int i = 0; i < ptypes.length; i++) {
-                        String pt = ptypes[i];
-                        // маппинг PHP-типа обратно в Java-тип
-                        String javaType;
-                        switch (pt) {
-                            case "string":  javaType = "String";  break;
-                            case "int":     javaType = "int";     break;
-                            case "long":    javaType = "long";    break;
-                            case "bool":    javaType = "boolean"; break;
-                            case "array":   javaType = "Object[]";break;
-                            default:        javaType = "Object";  break;
-                        }
-                        w.write(javaType + " arg" + (i+1));
-                        if (i < ptypes.length - 1) w.write(", ");
+            // 2.3 объявление класса с двойным экранированием в Namespace
+            String nsEscaped = pkg.replace(".", "\\\\");
+            w.write("@Namespace(\"" + nsEscaped + "\")\n");
+            // класс с публичным конструктором держит созданный через __construct объект
+            boolean holder = isConstructible(wrapped);
+            w.write("public class " + simpleName + " extends BaseObject" + (holder ? " implements Holder" : "") + " {\n");
+            if (holder) {
+                w.write("    private " + fullClass + " instance;\n\n");
+            }
+            w.write("    public " + simpleName + "(Environment env) { super(env); }\n");
+            w.write("    protected " + simpleName + "(ClassEntity entity) { super(entity); }\n");
+            w.write("    public " + simpleName + "(Environment env, ClassEntity clazz) { super(env, clazz); }\n\n");
+            if (holder) {
+                w.write("    @Override\n");
+                w.write("    public Object unwrap() { return instance; }\n\n");
+            }
+
+            // 2.4 методы: принимают и возвращают Memory, аргументы переводятся в Java-типы по дескриптору;
+            //     перегрузки одного имени — один метод с выбором по числу и типам аргументов (Overloads),
+            //     нестатические методы вызываются на instance
+            for (Map.Entry<String, List<MethodInfo>> e : Overloads.byName(wrapped).entrySet()) {
+                String name = e.getKey();
+                List<MethodInfo> group = e.getValue();
+                w.write("    @Signature\n");
+                w.write("    public " + (group.get(0).isStatic ? "static " : "") + "Memory " + name
+                        + "(Environment env, Memory... args) {\n");
+                // и у метода без перегрузок: неверное число аргументов — ошибка, а не вызов с чужими args
+                List<Overloads.Arity> plan = Overloads.plan(group);
+                w.write("        switch (args.length) {\n");
+                for (Overloads.Arity a : plan) {
+                    w.write("            case " + a.count + ": {\n");
+                    for (int p : a.positions) {
+                        w.write("                int k" + p + " = Marshal.typeBit(args[" + p + "]);\n");
                     }
-                    w.write(") {\n");
-
-                    // Тело: return OriginalClass.name(arg1, arg2);
-                    w.write("        ");
-                    if (!mi.typeLabel.equals("VOID")) w.write("return ");
-                    // для static вызываем класс напрямую
-                    w.write(fullClass + "." + name + "(");
-                    for (int i = 0; i < ptypes.length; i++) {
-                        w.write("arg" + (i+1));
-                        if (i < ptypes.length - 1) w.write(", ");
+                    for (int i = 0; i < a.candidates.size(); i++) {
+                        String cond = Overloads.condition(a.positions, a.checks(i));
+                        if (cond.isEmpty()) {
+                            writeCall(w, fullClass, a.candidates.get(i), "                ");
+                            break;
+                        }
+                        w.write("                if (" + cond + ") {\n");
+                        writeCall(w, fullClass, a.candidates.get(i), "                    ");
+                        w.write("                }\n");
                     }
-                    w.write(");\n");
+                    w.write("            }\n");
+                }
+                w.write("            default:\n");
+                w.write("                throw Marshal.arity(\"" + name + "\", args.length, \""
+                        + Overloads.counts(plan) + "\");\n");
+                w.write("        }\n");
+                w.write("    }\n\n");
 
+                // 2.5 пакетный вариант: цикл по наборам аргументов на стороне Java
+                String batch = batchCalls && group.get(0).isStatic ? batchName(name, names) : null;
+                if (batch != null) {
+                    w.write("    @Signature\n");
+                    w.write("    public static Memory " + batch + "(Environment env, Memory... args) {\n");
+                    w.write("        ForeachIterator it = Marshal.batch(\"" + batch + "\", args);\n");
+                    w.write("        ArrayMemory r = new ArrayMemory();\n");
+                    w.write("        while (it.next()) r.add(" + name + "(env, Marshal.tuple(it.getValue())));\n");
+                    w.write("        return r;\n");
                     w.write("    }\n\n");
                 }
+            }
 
-                w.write("}\n");
+            w.write("}\n");
+            text = w.toString();
+        }
+        out.println("Generated Java wrapper: " + output.writeSource(javaPath, text));
+        return text;
+    }
+
+    /**
+     * Вызов исходного метода и return его результата в Memory — тело обёртки или одна ветка
+     * выбора перегрузки: return Marshal.of(fullClass.name(Marshal.toStr(args[0]), ...));
+     * Нестатический метод вызывается на instance, конструктор присваивает instance.
+     */
+    private static void writeCall(StringWriter w, String fullClass, MethodInfo mi, String indent) {
+        StringBuilder call = new StringBuilder(isConstructor(mi)
+                ? "instance = new " + fullClass + "("
+                : (mi.isStatic ? fullClass : "instance") + "." + Overloads.name(mi) + "(");
+        int arg = 0;
+        List<String> ptypes = ClassFileReader.parameterTypes(mi.descriptor);
+        for (int i = 0; i < ptypes.size(); i++) {
+            if (i > 0) call.append(", ");
+            String pt = ptypes.get(i);
+            if (isEnvironment(pt)) {
+                call.append("env");
+                continue;
             }
-            System.out.println("Generated Java wrapper: " + javaFile.getPath());
+            String expr = "args[" + arg++ + "]";
+            Marshalling.Conversion cv = Marshalling.param(pt);
+            call.append(cv == null ? expr : cv.render(expr));
         }
+        call.append(")");
 
-        // 3) Теперь главный Extension-класс
-        File extDir = new File("tmp/javaprepare/JTJ/register");
-        extDir.mkdirs();
+        Marshalling.Conversion ret = Marshalling.result(ClassFileReader.returnType(mi.descriptor));
+        if (ret == null) {
+            w.write(indent + call + ";\n");
+            w.write(indent + "return Memory.NULL;\n");
+        } else {
+            w.write(indent + "return " + ret.render(call.toString()) + ";\n");
+        }
+    }
+
+    /**
+     * Имя пакетного варианта статического метода (--batch-calls): name -> nameBatch(array $argTuples),
+     * который за один переход из PHP вызывает name для каждого набора аргументов и возвращает
+     * массив результатов. null, если такое имя уже занято методом класса (names — все имена методов).
+     */
+    static String batchName(String name, Set<String> names) {
+        String batch = name + "Batch";
+        return names.contains(batch) ? null : batch;
+    }
+
+    /**
+     * Методы класса, которые попадают в обёртку; про остальные печатается SKIPPED.
+     * Из перегрузок с одинаковыми масками (см. Overloads.shadowed) остаётся одна.
+     */
+    static List<MethodInfo> wrappable(String fullClass, List<MethodInfo> methods, boolean bytecode, PrintStream out) {
+        boolean constructible = isConstructible(methods);
+        Set<String> staticNames = new HashSet<>();
+        for (MethodInfo mi : methods) {
+            if (mi.isStatic) {
+                staticNames.add(Overloads.name(mi));
+            }
+        }
+        List<MethodInfo> wrapped = new ArrayList<>();
+        for (MethodInfo mi : methods) {
+            String skip = skipReason(mi, constructible, staticNames, bytecode);
+            if (skip != null) {
+                out.println("  SKIPPED " + fullClass + "." + mi.signature + ": " + skip);
+                continue;
+            }
+            wrapped.add(mi);
+        }
+        // перегрузки с теми же типами значений PHP, что у другой, не вызываются никогда
+        for (List<MethodInfo> group : Overloads.byName(wrapped).values()) {
+            for (Map.Entry<MethodInfo, MethodInfo> e : Overloads.shadowed(group).entrySet()) {
+                // подписи f(float) и f(double) одинаковы (f(any)), поэтому печатаются дескрипторы
+                out.println("  SKIPPED " + fullClass + "." + e.getKey().signature
+                        + ": перегрузка " + Overloads.name(e.getKey()) + e.getKey().descriptor
+                        + " недостижима, вызывается " + Overloads.name(e.getValue()) + e.getValue().descriptor);
+                wrapped.remove(e.getKey());
+            }
+        }
+        return wrapped;
+    }
+
+    /**
+     * Почему метод не попадает в обёртку, или null.
+     * Нестатическим методам нужен объект, поэтому они обёртываются только у классов с публичным конструктором;
+     * в PHP метод не может быть одновременно статическим и нет — при совпадении имён остаются статические.
+     * Java-исходник не может сослаться на класс из пакета по умолчанию, поэтому у --backend=source
+     * такой класс получает пустую обёртку.
+     */
+    static String skipReason(MethodInfo mi, boolean constructible, Set<String> staticNames, boolean bytecode) {
+        if (!bytecode && mi.className.indexOf('.') < 0) {
+            return "класс из пакета по умолчанию: исходник обёртки не может на него сослаться (см. --backend=bytecode)";
+        }
+        if (mi.isStatic) {
+            return bytecode && mi.inInterface ? "статический метод интерфейса" : null;
+        }
+        if (isConstructor(mi)) {
+            return null;
+        }
+        if (!constructible) {
+            return "нестатический метод класса без публичного конструктора";
+        }
+        if (staticNames.contains(Overloads.name(mi))) {
+            return "нестатический метод с именем статического";
+        }
+        return null;
+    }
+
+    static boolean isConstructor(MethodInfo mi) {
+        return !mi.isStatic && mi.signature.startsWith(CONSTRUCTOR + "(");
+    }
+
+    /** Есть ли среди методов публичный конструктор — тогда обёртка держит объект */
+    static boolean isConstructible(List<MethodInfo> methods) {
+        for (MethodInfo mi : methods) {
+            if (isConstructor(mi)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Параметр Environment не приходит из PHP — в него передаётся env */
+    static boolean isEnvironment(String t) {
+        return t.equals(Marshalling.ENVIRONMENT_D);
+    }
+
+    /**
+     * Общие классы JTJ.runtime (Marshal и Holder), Extension-класс и метаданные бандла —
+     * всё, что пишется после обёрток отдельных классов.
+     */
+    static void finishWrappers(Collection<String> classes, Options options, BundleOutput output,
+                               PrintStream out) throws IOException {
+        String extension;
+        if (options.bytecode) {
+            out.println("Generated runtime: " + output.writeClass(Marshalling.CLASS + ".class", Marshalling.bytecode()));
+            out.println("Generated runtime: " + output.writeClass(Marshalling.HOLDER + ".class", Marshalling.holderBytecode()));
+            if (options.lazy) {
+                out.println("Generated runtime: " + output.writeClass(Marshalling.REGISTRY + ".class", Marshalling.registryBytecode()));
+            }
+            extension = BytecodeWrappers.writeExtension(classes, options.lazy, output, out);
+        } else {
+            out.println("Generated runtime: " + output.writeSource(Marshalling.CLASS + ".java", Marshalling.source()));
+            out.println("Generated runtime: " + output.writeSource(Marshalling.HOLDER + ".java", Marshalling.holderSource()));
+            if (options.lazy) {
+                out.println("Generated runtime: " + output.writeSource(Marshalling.REGISTRY + ".java", Marshalling.registrySource()));
+            }
+            extension = writeExtension(classes, options.lazy, output, out);
+        }
+        output.finish(extension);
+    }
+
+    /**
+     * Пишет главный Extension-класс, регистрирующий обёртки всех classes.
+     * lazy — вместо registerClass(scope, Foo.class) на каждый класс передать индекс имён
+     * в JTJ.runtime.Registry: обёртки не загружаются и не разбираются при старте.
+     * Возвращает его полное имя (JTJ.register.XxxExtension).
+     */
+    static String writeExtension(Collection<String> classes, boolean lazy, BundleOutput output,
+                                 PrintStream out) throws IOException {
         String extName = randomExtensionName(); // генерируем, например, "AbcExtension"
-        File extFile = new File(extDir, extName + ".java");
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(extFile))) {
-            w.write("package JTJ.register;\n");
-            w.write("// Class created by JavaToJPHP (github.com/meigoc)\n\n");
-            w.write("import php.runtime.env.CompileScope;\n");
-            w.write("import php.runtime.ext.support.Extension;\n");
-            // импортируем все wrapper-классы
-            for (String fullClass : byClass.keySet()) {
-                String pkg = fullClass.substring(0, fullClass.lastIndexOf('.'));
-                String simple = fullClass.substring(fullClass.lastIndexOf('.') + 1);
-                w.write("import JTJ." + pkg + "." + simple + ";\n");
-            }
-            w.write("\npublic class " + extName + " extends Extension {\n");
-            w.write("    public " + extName + "() {}\n\n");
-            w.write("    @Override\n");
-            w.write("    public Status getStatus() { return Status.EXPERIMENTAL; }\n\n");
-            w.write("    @Override\n");
-            w.write("    public String[] getPackageNames() { return new String[]{ \"jtj\" }; }\n\n");
-            w.write("    @Override\n");
-            w.write("    public void onRegister(CompileScope scope) {\n");
-            for (String fullClass : byClass.keySet()) {
-                String simple = fullClass.substring(fullClass.lastIndexOf('.') + 1);
-                w.write("        registerClass(scope, " + simple + ".class);\n");
-            }
-            w.write("    }\n");
-            w.write("}\n");
+        StringWriter w = new StringWriter();
+        w.write("package JTJ.register;\n");
+        w.write("// Class created by JavaToJPHP (github.com/meigoc)\n\n");
+        w.write("import php.runtime.env.CompileScope;\n");
+        w.write("import php.runtime.ext.support.Extension;\n");
+        if (lazy) {
+            w.write("import JTJ.runtime.Registry;\n");
+        }
+        // импортируем все wrapper-классы
+        for (String fullClass : lazy ? Collections.<String>emptyList() : classes) {
+            w.write("import JTJ." + fullClass + ";\n");
+        }
+        w.write("\npublic class " + extName + " extends Extension {\n");
+        w.write("    public " + extName + "() {}\n\n");
+        w.write("    @Override\n");
+        w.write("    public Status getStatus() { return Status.EXPERIMENTAL; }\n\n");
+        w.write("    @Override\n");
+        w.write("    public String[] getPackageNames() { return new String[]{ \"jtj\" }; }\n\n");
+        w.write("    @Override\n");
+        w.write("    public void onRegister(CompileScope scope) {\n");
+        for (String chunk : lazy ? registryIndex(classes) : Collections.<String>emptyList()) {
+            w.write("        Registry.register(this, scope, \"" + chunk.replace("\n", "\\n") + "\");\n");
+        }
+        for (String fullClass : lazy ? Collections.<String>emptyList() : classes) {
+            String simple = fullClass.substring(fullClass.lastIndexOf('.') + 1);
+            w.write("        registerClass(scope, " + simple + ".class);\n");
+        }
+        w.write("    }\n");
+        w.write("}\n");
+        out.println("Generated Extension: " + output.writeSource("JTJ/register/" + extName + ".java", w.toString()));
+        return "JTJ.register." + extName;
+    }
+
+    /**
+     * Индекс обёрток для --lazy: имена классов обёрток (JTJ.com.example.Foo), каждое с '\n'
+     * на конце, кусками меньше предела строковой константы класса (65535 байт).
+     */
+    static List<String> registryIndex(Collection<String> classes) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        int bytes = 0;
+        for (String fullClass : classes) {
+            String line = "JTJ." + fullClass + "\n";
+            int size = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char ch = line.charAt(i);
+                size += ch >= 1 && ch <= 0x7F ? 1 : ch < 0x800 ? 2 : 3;
+            }
+            if (bytes + size > 0xFFFF && chunk.length() > 0) {
+                chunks.add(chunk.toString());
+                chunk.setLength(0);
+                bytes = 0;
+            }
+            chunk.append(line);
+            bytes += size;
+        }
+        if (chunk.length() > 0) {
+            chunks.add(chunk.toString());
         }
-        System.out.println("Generated Extension: " + extFile.getPath());
+        return chunks;
+    }
+
+    /**
+     * Путь внутри папки результата; при outRoot == null — относительно текущей папки, как раньше.
+     */
+    static File outFile(File outRoot, String path) {
+        return outRoot == null ? new File(path) : new File(outRoot, path);
     }
 
-    private static String randomExtensionName() {
+    static String randomExtensionName() {
         String letters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
         Random rnd = new Random();
         StringBuilder sb = new StringBuilder();
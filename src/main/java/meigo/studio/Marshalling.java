@@ -0,0 +1,1282 @@
+package meigo.studio;
+
+import java.io.StringWriter;
+
+/**
+ * Преобразования между php.runtime.Memory и Java-типами для обёрток.
+ *
+ * Обёртки принимают и возвращают Memory напрямую (Environment env, Memory... args), поэтому
+ * JPHP не ищет конвертер для каждого аргумента при вызове. Примитивы читаются прямо из Memory
+ * (args[0].toLong()), остальное — через общий класс JTJ.runtime.Marshal, который кладётся
+ * в каждый бандл: массивы и List переводятся в ArrayMemory одним циклом, без упаковки элементов.
+ *
+ * Marshal существует в двух видах — исходник для --backend=source и байткод для
+ * --backend=bytecode; оба ведут себя одинаково и должны меняться вместе.
+ */
+final class Marshalling {
+    /** Внутреннее имя класса преобразований в бандле */
+    static final String CLASS = "JTJ/runtime/Marshal";
+    /** Интерфейс обёрток, держащих Java-объект: Marshal.toObject достаёт объект из них */
+    static final String HOLDER = "JTJ/runtime/Holder";
+    /** Ленивая регистрация обёрток (--lazy) */
+    static final String REGISTRY = "JTJ/runtime/Registry";
+
+    static final String MEMORY       = "php/runtime/Memory";
+    static final String MEMORY_D     = "L" + MEMORY + ";";
+    static final String TYPE         = "php/runtime/Memory$Type";
+    static final String ARRAY_MEMORY = "php/runtime/memory/ArrayMemory";
+    static final String STRING_MEMORY = "php/runtime/memory/StringMemory";
+    static final String LONG_MEMORY  = "php/runtime/memory/LongMemory";
+    static final String DOUBLE_MEMORY = "php/runtime/memory/DoubleMemory";
+    static final String FOREACH      = "php/runtime/lang/ForeachIterator";
+    static final String OBJECT_MEMORY = "php/runtime/memory/ObjectMemory";
+    static final String IGNORE_D     = "Lphp/runtime/annotation/Reflection$Ignore;";
+    static final String ENVIRONMENT_D = "Lphp/runtime/env/Environment;";
+    /** Дескриптор метода обёртки: (Environment env, Memory... args) -> Memory */
+    static final String WRAPPER_DESC = "(" + ENVIRONMENT_D + "[" + MEMORY_D + ")" + MEMORY_D;
+
+    static final String ADD_DESC     = "(" + MEMORY_D + ")Lphp/runtime/memory/ReferenceMemory;";
+    private static final String ADD_LONG_DESC = "(J)Lphp/runtime/memory/ReferenceMemory;";
+
+    // типы-массивы, которые Marshal переводит в ArrayMemory сам (порядок — как в ofObject)
+    private static final String PRIMITIVE_ARRAYS = "IJSBCZFD";
+
+    // типы Memory в порядке битов Overloads (NULL = 1, BOOL = 2, ...); остальное — OBJECT
+    private static final String[] TYPE_BITS = {"NULL", "BOOL", "INT", "DOUBLE", "STRING", "ARRAY"};
+    private static final String ARITY_GIVEN = "(): передано аргументов: ";
+    private static final String ARITY_EXPECTED = ", ожидается: ";
+    private static final String NOT_ARRAY = "ожидается массив, передано: ";
+
+    private Marshalling() {
+    }
+
+    /**
+     * Одно преобразование: значение на стеке (или выражение в исходнике) -> значение нужного типа.
+     * Это либо метод самой Memory (args[0].toLong()), либо статический метод Marshal.
+     */
+    static final class Conversion {
+        private final int before;        // опкод до вызова (i2l) или 0
+        private final boolean onMemory;  // метод Memory, а не Marshal
+        private final String name;
+        private final String descriptor;
+        private final int after;         // сужение после вызова (l2i, ...) или 0
+        private final int narrow;        // второе сужение (i2s, i2b) или 0
+        private final String cast;       // внутреннее имя для checkcast или null
+        private final String sourceCast; // приведение в исходнике: "(int) " или ""
+
+        private Conversion(int before, boolean onMemory, String name, String descriptor,
+                           int after, int narrow, String cast, String sourceCast) {
+            this.before     = before;
+            this.onMemory   = onMemory;
+            this.name       = name;
+            this.descriptor = descriptor;
+            this.after      = after;
+            this.narrow     = narrow;
+            this.cast       = cast;
+            this.sourceCast = sourceCast;
+        }
+
+        static Conversion memory(String name, String returnType, int after, String sourceCast) {
+            return new Conversion(0, true, name, "()" + returnType, after, 0, null, sourceCast);
+        }
+
+        static Conversion marshal(String name, String descriptor) {
+            return new Conversion(0, false, name, descriptor, 0, 0, null, "");
+        }
+
+        /** Выражение Java-исходника для значения expr */
+        String render(String expr) {
+            if (onMemory) {
+                return sourceCast + expr + "." + name + "()";
+            }
+            return sourceCast + "Marshal." + name + "(" + expr + ")";
+        }
+
+        /** То же байткодом: значение уже на стеке */
+        void emit(ClassFileWriter.Code c) {
+            if (before != 0) {
+                c.op(before, 1);
+            }
+            c.invoke(onMemory ? ClassFileWriter.INVOKEVIRTUAL : ClassFileWriter.INVOKESTATIC,
+                    onMemory ? MEMORY : CLASS, name, descriptor);
+            if (after != 0) {
+                c.op(after, after == ClassFileWriter.L2I || after == ClassFileWriter.D2F ? -1 : 0);
+            }
+            if (narrow != 0) {
+                c.op(narrow, 0);
+            }
+            if (cast != null) {
+                c.type(ClassFileWriter.CHECKCAST, cast);
+            }
+        }
+    }
+
+    /**
+     * Как аргумент Memory превращается в параметр типа t (дескриптор).
+     * Для Memory преобразование не нужно (null), Environment берётся из env, а не из args.
+     */
+    static Conversion param(String t) {
+        switch (t) {
+            case "Z": return Conversion.memory("toBoolean", "Z", 0, "");
+            case "J": return Conversion.memory("toLong", "J", 0, "");
+            case "I": return Conversion.memory("toLong", "J", ClassFileWriter.L2I, "(int) ");
+            case "S": return narrowInt(ClassFileWriter.I2S, "(short) ");
+            case "B": return narrowInt(ClassFileWriter.I2B, "(byte) ");
+            case "D": return Conversion.memory("toDouble", "D", 0, "");
+            case "F": return Conversion.memory("toDouble", "D", ClassFileWriter.D2F, "(float) ");
+            case "C": return Conversion.marshal("toChar", "(" + MEMORY_D + ")C");
+            case "Ljava/lang/String;":  return toJava("toStr", t);
+            case "Ljava/lang/Integer;": return toJava("toIntegerObject", t);
+            case "Ljava/lang/Long;":    return toJava("toLongObject", t);
+            case "Ljava/lang/Double;":  return toJava("toDoubleObject", t);
+            case "Ljava/lang/Boolean;": return toJava("toBooleanObject", t);
+            case "Lphp/runtime/memory/ArrayMemory;": return toJava("toArrayMemory", t);
+            case "[I": return toJava("toIntArray", t);
+            case "[J": return toJava("toLongArray", t);
+            case "[D": return toJava("toDoubleArray", t);
+            case "[Z": return toJava("toBooleanArray", t);
+            case "[Ljava/lang/String;": return toJava("toStringArray", t);
+            case "[Ljava/lang/Object;": return toJava("toObjectArray", t);
+            case "Ljava/util/List;":
+            case "Ljava/util/Collection;":
+            case "Ljava/lang/Iterable;":
+            case "Ljava/util/ArrayList;":
+                return toJava("toList", "Ljava/util/ArrayList;");
+            case "Ljava/lang/Object;": return toJava("toObject", t);
+            case MEMORY_D: return null;
+        }
+        // любой другой объектный тип — toObject и приведение (сработает, если PHP передал подходящее значение)
+        String internal = t.startsWith("[") ? t : t.substring(1, t.length() - 1);
+        return new Conversion(0, false, "toObject", "(" + MEMORY_D + ")Ljava/lang/Object;", 0, 0,
+                internal, "(" + javaName(t) + ") ");
+    }
+
+    /**
+     * Переводит ли param(t) PHP-массив в значение типа t. Остальные типы — даже наследники List
+     * и другие массивы — получают Marshal.toObject и приведение, и PHP-массив для них не годится.
+     */
+    static boolean acceptsArray(String t) {
+        switch (t) {
+            case "Lphp/runtime/memory/ArrayMemory;":
+            case "[I":
+            case "[J":
+            case "[D":
+            case "[Z":
+            case "[Ljava/lang/String;":
+            case "[Ljava/lang/Object;":
+            case "Ljava/util/List;":
+            case "Ljava/util/Collection;":
+            case "Ljava/lang/Iterable;":
+            case "Ljava/util/ArrayList;":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // (short) args[0].toLong(): l2i, затем i2s
+    private static Conversion narrowInt(int opcode, String sourceCast) {
+        return new Conversion(0, true, "toLong", "()J", ClassFileWriter.L2I, opcode, null, sourceCast);
+    }
+
+    private static Conversion toJava(String name, String type) {
+        return Conversion.marshal(name, "(" + MEMORY_D + ")" + type);
+    }
+
+    /**
+     * Как результат Java-метода типа t превращается в Memory; null — void (результат Memory.NULL).
+     */
+    static Conversion result(String t) {
+        switch (t) {
+            case "V": return null;
+            case "Ljava/lang/String;": return of("Ljava/lang/String;");
+            case "I":
+            case "S":
+            case "B":
+                return new Conversion(ClassFileWriter.I2L, false, "of", "(J)" + MEMORY_D, 0, 0, null, "");
+            case "J": return of("J");
+            case "Z": return of("Z");
+            case "D": return of("D");
+            case "F": return new Conversion(ClassFileWriter.F2D, false, "of", "(D)" + MEMORY_D, 0, 0, null, "");
+            case "Ljava/lang/Boolean;": return of("Ljava/lang/Boolean;");
+        }
+        if (t.length() == 2 && t.charAt(0) == '[' && PRIMITIVE_ARRAYS.indexOf(t.charAt(1)) >= 0) {
+            return of(t);
+        }
+        if (t.startsWith("[")) {
+            return of("[Ljava/lang/Object;");
+        }
+        if (t.equals("Ljava/lang/Integer;") || t.equals("Ljava/lang/Long;")
+                || t.equals("Ljava/lang/Double;") || t.equals("Ljava/lang/Number;")) {
+            return of("Ljava/lang/Number;");
+        }
+        if (t.startsWith("Lphp/runtime/")) {
+            return of(MEMORY_D);
+        }
+        // List и его наследники
+        return of("Ljava/util/List;");
+    }
+
+    private static Conversion of(String type) {
+        return Conversion.marshal("of", "(" + type + ")" + MEMORY_D);
+    }
+
+    /**
+     * Имя типа в Java-исходнике: Lcom/x/Foo$Bar; -> com.x.Foo.Bar, [I -> int[]
+     */
+    static String javaName(String t) {
+        switch (t.charAt(0)) {
+            case 'V': return "void";
+            case 'Z': return "boolean";
+            case 'B': return "byte";
+            case 'C': return "char";
+            case 'S': return "short";
+            case 'I': return "int";
+            case 'J': return "long";
+            case 'F': return "float";
+            case 'D': return "double";
+            case '[': return javaName(t.substring(1)) + "[]";
+            default:  return t.substring(1, t.length() - 1).replace('/', '.').replace('$', '.');
+        }
+    }
+
+    // ---------------- JTJ.runtime.Marshal: исходник ----------------
+
+    // содержимое строкового литерала исходника: не-ASCII заменяется юникод-экранированием,
+    // чтобы Marshal.java компилировался с любой -encoding
+    private static String ascii(String text) {
+        StringBuilder sb = new StringBuilder(text.length() * 2);
+        for (char c : text.toCharArray()) {
+            if (c < 0x80) {
+                sb.append(c);
+            } else {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Исходник JTJ/runtime/Marshal.java для --backend=source.
+     */
+    static String source() {
+        StringWriter w = new StringWriter();
+        w.write("package JTJ.runtime;\n");
+        w.write("// Class created by JavaToJPHP (github.com/meigoc)\n\n");
+        w.write("import java.util.ArrayList;\n");
+        w.write("import java.util.List;\n");
+        w.write("import php.runtime.Memory;\n");
+        w.write("import php.runtime.lang.ForeachIterator;\n");
+        w.write("import php.runtime.memory.ArrayMemory;\n");
+        w.write("import php.runtime.memory.DoubleMemory;\n");
+        w.write("import php.runtime.memory.LongMemory;\n");
+        w.write("import php.runtime.memory.ObjectMemory;\n");
+        w.write("import php.runtime.memory.StringMemory;\n\n");
+        w.write("/** Memory <-> Java conversions for JavaToJPHP wrappers */\n");
+        w.write("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+        w.write("public final class Marshal {\n");
+        w.write("    private Marshal() {}\n\n");
+
+        // Java -> Memory
+        w.write("    public static Memory of(String v) { return v == null ? Memory.NULL : new StringMemory(v); }\n");
+        w.write("    public static Memory of(long v) { return new LongMemory(v); }\n");
+        w.write("    public static Memory of(double v) { return new DoubleMemory(v); }\n");
+        w.write("    public static Memory of(boolean v) { return v ? Memory.TRUE : Memory.FALSE; }\n");
+        w.write("    public static Memory of(Boolean v) { return v == null ? Memory.NULL : of(v.booleanValue()); }\n");
+        w.write("    public static Memory of(Memory v) { return v == null ? Memory.NULL : v; }\n\n");
+        w.write("    public static Memory of(Number v) {\n");
+        w.write("        if (v == null) return Memory.NULL;\n");
+        w.write("        if (v instanceof Double || v instanceof Float) return new DoubleMemory(v.doubleValue());\n");
+        w.write("        return new LongMemory(v.longValue());\n");
+        w.write("    }\n\n");
+        for (char p : PRIMITIVE_ARRAYS.toCharArray()) {
+            String type = javaName(String.valueOf(p));
+            w.write("    public static Memory of(" + type + "[] a) {\n");
+            w.write("        if (a == null) return Memory.NULL;\n");
+            if (p == 'C') {
+                w.write("        return new StringMemory(new String(a));\n");
+                w.write("    }\n\n");
+                continue;
+            }
+            w.write("        ArrayMemory r = new ArrayMemory();\n");
+            String element;
+            switch (p) {
+                case 'Z': element = "of(a[i])"; break;
+                case 'F':
+                case 'D': element = "of((double) a[i])"; break;
+                default:  element = "(long) a[i]"; break;
+            }
+            w.write("        for (int i = 0; i < a.length; i++) r.add(" + element + ");\n");
+            w.write("        return r;\n");
+            w.write("    }\n\n");
+        }
+        w.write("    public static Memory of(Object[] a) {\n");
+        w.write("        if (a == null) return Memory.NULL;\n");
+        w.write("        ArrayMemory r = new ArrayMemory();\n");
+        w.write("        for (int i = 0; i < a.length; i++) r.add(ofObject(a[i]));\n");
+        w.write("        return r;\n");
+        w.write("    }\n\n");
+        w.write("    public static Memory of(List<?> list) {\n");
+        w.write("        if (list == null) return Memory.NULL;\n");
+        w.write("        ArrayMemory r = new ArrayMemory();\n");
+        w.write("        for (Object o : list) r.add(ofObject(o));\n");
+        w.write("        return r;\n");
+        w.write("    }\n\n");
+        w.write("    public static Memory ofObject(Object o) {\n");
+        w.write("        if (o == null) return Memory.NULL;\n");
+        w.write("        if (o instanceof Memory) return (Memory) o;\n");
+        w.write("        if (o instanceof String) return of((String) o);\n");
+        w.write("        if (o instanceof Boolean) return of((Boolean) o);\n");
+        w.write("        if (o instanceof Number) return of((Number) o);\n");
+        w.write("        if (o instanceof List) return of((List<?>) o);\n");
+        w.write("        if (o instanceof Object[]) return of((Object[]) o);\n");
+        for (char p : PRIMITIVE_ARRAYS.toCharArray()) {
+            String type = javaName(String.valueOf(p)) + "[]";
+            w.write("        if (o instanceof " + type + ") return of((" + type + ") o);\n");
+        }
+        w.write("        return new StringMemory(o.toString());\n");
+        w.write("    }\n\n");
+
+        // Memory -> Java
+        w.write("    public static String toStr(Memory m) {\n");
+        w.write("        if (m == null) return null;\n");
+        w.write("        Memory v = m.toValue();\n");
+        w.write("        if (v.type == Memory.Type.NULL) return null;\n");
+        w.write("        return v.toString();\n");
+        w.write("    }\n\n");
+        w.write("    public static char toChar(Memory m) {\n");
+        w.write("        String s = toStr(m);\n");
+        w.write("        if (s == null || s.isEmpty()) return 0;\n");
+        w.write("        return s.charAt(0);\n");
+        w.write("    }\n\n");
+        boxed(w, "Integer", "Integer.valueOf((int) v.toLong())");
+        boxed(w, "Long", "Long.valueOf(v.toLong())");
+        boxed(w, "Double", "Double.valueOf(v.toDouble())");
+        boxed(w, "Boolean", "Boolean.valueOf(v.toBoolean())");
+        w.write("    public static ArrayMemory toArrayMemory(Memory m) {\n");
+        w.write("        if (m == null) return null;\n");
+        w.write("        Memory v = m.toValue();\n");
+        w.write("        if (v.type == Memory.Type.NULL) return null;\n");
+        w.write("        if (v.type != Memory.Type.ARRAY) throw new IllegalArgumentException(\"" + ascii(NOT_ARRAY) + "\" + v.type);\n");
+        w.write("        return (ArrayMemory) v;\n");
+        w.write("    }\n\n");
+        array(w, "int", "(int) it.getValue().toLong()");
+        array(w, "long", "it.getValue().toLong()");
+        array(w, "double", "it.getValue().toDouble()");
+        array(w, "boolean", "it.getValue().toBoolean()");
+        array(w, "String", "toStr(it.getValue())");
+        array(w, "Object", "toObject(it.getValue())");
+        w.write("    public static ArrayList toList(Memory m) {\n");
+        w.write("        ArrayMemory a = toArrayMemory(m);\n");
+        w.write("        if (a == null) return null;\n");
+        w.write("        ArrayList r = new ArrayList(a.size());\n");
+        w.write("        ForeachIterator it = a.foreachIterator(false, false);\n");
+        w.write("        while (it.next()) r.add(toObject(it.getValue()));\n");
+        w.write("        return r;\n");
+        w.write("    }\n\n");
+        w.write("    public static Object toObject(Memory m) {\n");
+        w.write("        if (m == null) return null;\n");
+        w.write("        Memory v = m.toValue();\n");
+        w.write("        Memory.Type t = v.type;\n");
+        w.write("        if (t == Memory.Type.NULL) return null;\n");
+        w.write("        if (t == Memory.Type.BOOL) return Boolean.valueOf(v.toBoolean());\n");
+        w.write("        if (t == Memory.Type.INT) return Long.valueOf(v.toLong());\n");
+        w.write("        if (t == Memory.Type.DOUBLE) return Double.valueOf(v.toDouble());\n");
+        w.write("        if (t == Memory.Type.STRING) return v.toString();\n");
+        w.write("        if (t == Memory.Type.ARRAY) return toList(v);\n");
+        w.write("        if (v instanceof ObjectMemory && ((ObjectMemory) v).value instanceof Holder) {\n");
+        w.write("            return ((Holder) ((ObjectMemory) v).value).unwrap();\n");
+        w.write("        }\n");
+        w.write("        return v;\n");
+        w.write("    }\n\n");
+
+        // выбор перегрузки (Overloads): один бит на тип значения
+        w.write("    public static int typeBit(Memory m) {\n");
+        w.write("        Memory.Type t = m.toValue().type;\n");
+        for (int i = 0; i < TYPE_BITS.length; i++) {
+            w.write("        if (t == Memory.Type." + TYPE_BITS[i] + ") return " + (1 << i) + ";\n");
+        }
+        w.write("        return " + Overloads.OBJECT + ";\n");
+        w.write("    }\n\n");
+        w.write("    public static IllegalArgumentException arity(String method, int given, String expected) {\n");
+        w.write("        return new IllegalArgumentException(method + \"" + ascii(ARITY_GIVEN) + "\" + given + \""
+                + ascii(ARITY_EXPECTED) + "\" + expected);\n");
+        w.write("    }\n\n");
+
+        // пакетные вызовы (--batch-calls): nameBatch(array $argTuples)
+        w.write("    public static ForeachIterator batch(String method, Memory[] args) {\n");
+        w.write("        if (args.length != 1) throw arity(method, args.length, \"1\");\n");
+        w.write("        ArrayMemory a = toArrayMemory(args[0]);\n");
+        w.write("        return (a == null ? new ArrayMemory() : a).foreachIterator(false, false);\n");
+        w.write("    }\n\n");
+        w.write("    public static Memory[] tuple(Memory m) {\n");
+        w.write("        Memory v = m.toValue();\n");
+        w.write("        if (v.type != Memory.Type.ARRAY) return new Memory[] {v};\n");
+        w.write("        ArrayMemory a = (ArrayMemory) v;\n");
+        w.write("        Memory[] r = new Memory[a.size()];\n");
+        w.write("        ForeachIterator it = a.foreachIterator(false, false);\n");
+        w.write("        for (int i = 0; it.next(); i++) r[i] = it.getValue();\n");
+        w.write("        return r;\n");
+        w.write("    }\n");
+        w.write("}\n");
+        return w.toString();
+    }
+
+    private static void boxed(StringWriter w, String type, String value) {
+        w.write("    public static " + type + " to" + type + "Object(Memory m) {\n");
+        w.write("        if (m == null) return null;\n");
+        w.write("        Memory v = m.toValue();\n");
+        w.write("        if (v.type == Memory.Type.NULL) return null;\n");
+        w.write("        return " + value + ";\n");
+        w.write("    }\n\n");
+    }
+
+    private static void array(StringWriter w, String type, String element) {
+        String name = Character.toUpperCase(type.charAt(0)) + type.substring(1);
+        w.write("    public static " + type + "[] to" + name + "Array(Memory m) {\n");
+        w.write("        ArrayMemory a = toArrayMemory(m);\n");
+        w.write("        if (a == null) return null;\n");
+        w.write("        " + type + "[] r = new " + type + "[a.size()];\n");
+        w.write("        ForeachIterator it = a.foreachIterator(false, false);\n");
+        w.write("        for (int i = 0; it.next(); i++) r[i] = " + element + ";\n");
+        w.write("        return r;\n");
+        w.write("    }\n\n");
+    }
+
+    // ---------------- JTJ.runtime.Holder ----------------
+
+    /**
+     * Исходник JTJ/runtime/Holder.java. @Ignore — JPHP не регистрирует его как PHP-интерфейс.
+     */
+    static String holderSource() {
+        StringWriter w = new StringWriter();
+        w.write("package JTJ.runtime;\n");
+        w.write("// Class created by JavaToJPHP (github.com/meigoc)\n\n");
+        w.write("import php.runtime.annotation.Reflection.Ignore;\n\n");
+        w.write("/** Wrapper holding a Java object (created through __construct) */\n");
+        w.write("@Ignore\n");
+        w.write("public interface Holder {\n");
+        w.write("    Object unwrap();\n");
+        w.write("}\n");
+        return w.toString();
+    }
+
+    /**
+     * Тот же интерфейс байткодом.
+     */
+    static byte[] holderBytecode() {
+        ClassFileWriter cw = new ClassFileWriter(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_INTERFACE
+                | ClassFileWriter.ACC_ABSTRACT, HOLDER, "java/lang/Object");
+        cw.annotate(IGNORE_D);
+        cw.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_ABSTRACT, "unwrap", "()Ljava/lang/Object;");
+        return cw.toByteArray();
+    }
+
+    // ---------------- JTJ.runtime.Registry ----------------
+
+    /**
+     * Исходник JTJ/runtime/Registry.java — ленивая регистрация обёрток (--lazy).
+     * index — имена классов обёрток, каждое заканчивается '\n'. Класс загружается без
+     * инициализации; если в jphp-runtime есть CompileScope.registerLazyClass(Extension, Class),
+     * описание класса для PHP строится при первом обращении, иначе — обычный registerClass.
+     */
+    static String registrySource() {
+        StringWriter w = new StringWriter();
+        w.write("package JTJ.runtime;\n");
+        w.write("// Class created by JavaToJPHP (github.com/meigoc)\n\n");
+        w.write("import java.lang.reflect.Method;\n");
+        w.write("import php.runtime.env.CompileScope;\n");
+        w.write("import php.runtime.ext.support.Extension;\n\n");
+        w.write("public final class Registry {\n");
+        w.write("    private Registry() {}\n\n");
+        w.write("    public static void register(Extension extension, CompileScope scope, String index) {\n");
+        w.write("        ClassLoader loader = extension.getClass().getClassLoader();\n");
+        w.write("        Method lazy = lazy();\n");
+        w.write("        for (int from = 0; from < index.length(); ) {\n");
+        w.write("            int end = index.indexOf('\\n', from);\n");
+        w.write("            try {\n");
+        w.write("                Class<?> c = Class.forName(index.substring(from, end), false, loader);\n");
+        w.write("                if (lazy != null) lazy.invoke(scope, extension, c);\n");
+        w.write("                else extension.registerClass(scope, c);\n");
+        w.write("            } catch (ReflectiveOperationException e) {\n");
+        w.write("                throw new IllegalStateException(e);\n");
+        w.write("            }\n");
+        w.write("            from = end + 1;\n");
+        w.write("        }\n");
+        w.write("    }\n\n");
+        w.write("    private static Method lazy() {\n");
+        w.write("        Method[] methods = CompileScope.class.getMethods();\n");
+        w.write("        for (int i = 0; i < methods.length; i++) {\n");
+        w.write("            if (methods[i].getName().equals(\"registerLazyClass\") && methods[i].getParameterTypes().length == 2) return methods[i];\n");
+        w.write("        }\n");
+        w.write("        return null;\n");
+        w.write("    }\n");
+        w.write("}\n");
+        return w.toString();
+    }
+
+    /**
+     * Тот же класс байткодом. Исключения рефлексии не оборачиваются: проверяемых исключений
+     * в байткоде нет, и при ошибке вылетает само исключение, а не IllegalStateException.
+     */
+    static byte[] registryBytecode() {
+        ClassFileWriter cw = new ClassFileWriter(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL,
+                REGISTRY, "java/lang/Object");
+        String method = "java/lang/reflect/Method";
+        String scopeType = "php/runtime/env/CompileScope";
+        String extension = "php/runtime/ext/support/Extension";
+
+        // register(extension 0, scope 1, index 2)
+        ClassFileWriter.Code c = cw.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "register",
+                "(L" + extension + ";L" + scopeType + ";Ljava/lang/String;)V");
+        int loader = c.newLocal('L');
+        int lazy = c.newLocal('L');
+        int from = c.newLocal('I');
+        int end = c.newLocal('I');
+        int cls = c.newLocal('L');
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;");
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/Class", "getClassLoader", "()Ljava/lang/ClassLoader;");
+        c.store('L', loader);
+        c.invoke(ClassFileWriter.INVOKESTATIC, REGISTRY, "lazy", "()L" + method + ";");
+        c.store('L', lazy);
+        c.iconst(0);
+        c.store('I', from);
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label eager = new ClassFileWriter.Label();
+        ClassFileWriter.Label next = new ClassFileWriter.Label();
+        ClassFileWriter.Label done = new ClassFileWriter.Label();
+        c.mark(loop);
+        c.load('I', from);
+        c.load('L', 2);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "length", "()I");
+        c.jump(ClassFileWriter.IF_ICMPGE, done);
+        // end = index.indexOf('\n', from); cls = Class.forName(index.substring(from, end), false, loader)
+        c.load('L', 2);
+        c.iconst('\n');
+        c.load('I', from);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "indexOf", "(II)I");
+        c.store('I', end);
+        c.load('L', 2);
+        c.load('I', from);
+        c.load('I', end);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "substring", "(II)Ljava/lang/String;");
+        c.iconst(0);
+        c.load('L', loader);
+        c.invoke(ClassFileWriter.INVOKESTATIC, "java/lang/Class", "forName",
+                "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;");
+        c.store('L', cls);
+        // lazy.invoke(scope, new Object[]{extension, cls})
+        c.load('L', lazy);
+        c.jump(ClassFileWriter.IFNULL, eager);
+        c.load('L', lazy);
+        c.load('L', 1);
+        c.iconst(2);
+        c.type(ClassFileWriter.ANEWARRAY, "java/lang/Object");
+        c.op(ClassFileWriter.DUP, 1);
+        c.iconst(0);
+        c.load('L', 0);
+        c.op(ClassFileWriter.AASTORE, -3);
+        c.op(ClassFileWriter.DUP, 1);
+        c.iconst(1);
+        c.load('L', cls);
+        c.op(ClassFileWriter.AASTORE, -3);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, method, "invoke",
+                "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;");
+        c.op(ClassFileWriter.POP, -1);
+        c.jump(ClassFileWriter.GOTO, next);
+        // extension.registerClass(scope, new Class[]{cls})
+        c.mark(eager);
+        c.load('L', 0);
+        c.load('L', 1);
+        c.iconst(1);
+        c.type(ClassFileWriter.ANEWARRAY, "java/lang/Class");
+        c.op(ClassFileWriter.DUP, 1);
+        c.iconst(0);
+        c.load('L', cls);
+        c.op(ClassFileWriter.AASTORE, -3);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, extension, "registerClass",
+                "(L" + scopeType + ";[Ljava/lang/Class;)V");
+        c.mark(next);
+        c.load('I', end);
+        c.iconst(1);
+        c.op(ClassFileWriter.IADD, -1);
+        c.store('I', from);
+        c.jump(ClassFileWriter.GOTO, loop);
+        c.mark(done);
+        c.returnValue('V');
+
+        // lazy(): CompileScope.registerLazyClass(Extension, Class) или null
+        c = cw.method(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC, "lazy", "()L" + method + ";");
+        int methods = c.newLocal('L');
+        int i = c.newLocal('I');
+        c.ldcClass(scopeType);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/Class", "getMethods", "()[L" + method + ";");
+        c.store('L', methods);
+        c.iconst(0);
+        c.store('I', i);
+        ClassFileWriter.Label scan = new ClassFileWriter.Label();
+        ClassFileWriter.Label skip = new ClassFileWriter.Label();
+        ClassFileWriter.Label none = new ClassFileWriter.Label();
+        c.mark(scan);
+        c.load('I', i);
+        c.load('L', methods);
+        c.op(ClassFileWriter.ARRAYLENGTH, 0);
+        c.jump(ClassFileWriter.IF_ICMPGE, none);
+        c.load('L', methods);
+        c.load('I', i);
+        c.op(ClassFileWriter.AALOAD, -1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, method, "getName", "()Ljava/lang/String;");
+        c.ldc("registerLazyClass");
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+        c.jump(ClassFileWriter.IFEQ, skip);
+        c.load('L', methods);
+        c.load('I', i);
+        c.op(ClassFileWriter.AALOAD, -1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, method, "getParameterTypes", "()[Ljava/lang/Class;");
+        c.op(ClassFileWriter.ARRAYLENGTH, 0);
+        c.iconst(2);
+        c.jump(ClassFileWriter.IF_ICMPNE, skip);
+        c.load('L', methods);
+        c.load('I', i);
+        c.op(ClassFileWriter.AALOAD, -1);
+        c.returnValue('L');
+        c.mark(skip);
+        c.iinc(i, 1);
+        c.jump(ClassFileWriter.GOTO, scan);
+        c.mark(none);
+        c.op(ClassFileWriter.ACONST_NULL, 1);
+        c.returnValue('L');
+        return cw.toByteArray();
+    }
+
+    // ---------------- JTJ.runtime.Marshal: байткод ----------------
+
+    /**
+     * Тот же класс байткодом для --backend=bytecode.
+     */
+    static byte[] bytecode() {
+        ClassFileWriter cw = new ClassFileWriter(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL,
+                CLASS, "java/lang/Object");
+        int ps = ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC;
+        ClassFileWriter.Code c = cw.method(ClassFileWriter.ACC_PRIVATE, "<init>", "()V");
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        c.returnValue('V');
+
+        // Java -> Memory
+        c = cw.method(ps, "of", "(Ljava/lang/String;)" + MEMORY_D);
+        returnNullMemoryIfNull(c);
+        newMemory(c, STRING_MEMORY, "Ljava/lang/String;", 'L', 0);
+        c.returnValue('L');
+
+        c = cw.method(ps, "of", "(J)" + MEMORY_D);
+        newMemory(c, LONG_MEMORY, "J", 'J', 0);
+        c.returnValue('L');
+
+        c = cw.method(ps, "of", "(D)" + MEMORY_D);
+        newMemory(c, DOUBLE_MEMORY, "D", 'D', 0);
+        c.returnValue('L');
+
+        c = cw.method(ps, "of", "(Z)" + MEMORY_D);
+        ClassFileWriter.Label no = new ClassFileWriter.Label();
+        c.load('Z', 0);
+        c.jump(ClassFileWriter.IFEQ, no);
+        c.field(ClassFileWriter.GETSTATIC, MEMORY, "TRUE", MEMORY_D);
+        c.returnValue('L');
+        c.mark(no);
+        c.field(ClassFileWriter.GETSTATIC, MEMORY, "FALSE", MEMORY_D);
+        c.returnValue('L');
+
+        c = cw.method(ps, "of", "(Ljava/lang/Boolean;)" + MEMORY_D);
+        returnNullMemoryIfNull(c);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z");
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "of", "(Z)" + MEMORY_D);
+        c.returnValue('L');
+
+        c = cw.method(ps, "of", "(" + MEMORY_D + ")" + MEMORY_D);
+        returnNullMemoryIfNull(c);
+        c.load('L', 0);
+        c.returnValue('L');
+
+        c = cw.method(ps, "of", "(Ljava/lang/Number;)" + MEMORY_D);
+        returnNullMemoryIfNull(c);
+        ClassFileWriter.Label real = new ClassFileWriter.Label();
+        c.load('L', 0);
+        c.type(ClassFileWriter.INSTANCEOF, "java/lang/Double");
+        c.jump(ClassFileWriter.IFNE, real);
+        c.load('L', 0);
+        c.type(ClassFileWriter.INSTANCEOF, "java/lang/Float");
+        c.jump(ClassFileWriter.IFNE, real);
+        c.type(ClassFileWriter.NEW, LONG_MEMORY);
+        c.op(ClassFileWriter.DUP, 1);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/Number", "longValue", "()J");
+        c.invoke(ClassFileWriter.INVOKESPECIAL, LONG_MEMORY, "<init>", "(J)V");
+        c.returnValue('L');
+        c.mark(real);
+        c.type(ClassFileWriter.NEW, DOUBLE_MEMORY);
+        c.op(ClassFileWriter.DUP, 1);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/Number", "doubleValue", "()D");
+        c.invoke(ClassFileWriter.INVOKESPECIAL, DOUBLE_MEMORY, "<init>", "(D)V");
+        c.returnValue('L');
+
+        for (char p : PRIMITIVE_ARRAYS.toCharArray()) {
+            c = cw.method(ps, "of", "([" + p + ")" + MEMORY_D);
+            returnNullMemoryIfNull(c);
+            if (p == 'C') {
+                c.type(ClassFileWriter.NEW, STRING_MEMORY);
+                c.op(ClassFileWriter.DUP, 1);
+                c.type(ClassFileWriter.NEW, "java/lang/String");
+                c.op(ClassFileWriter.DUP, 1);
+                c.load('L', 0);
+                c.invoke(ClassFileWriter.INVOKESPECIAL, "java/lang/String", "<init>", "([C)V");
+                c.invoke(ClassFileWriter.INVOKESPECIAL, STRING_MEMORY, "<init>", "(Ljava/lang/String;)V");
+                c.returnValue('L');
+                continue;
+            }
+            arrayToMemory(c, p);
+        }
+        c = cw.method(ps, "of", "([Ljava/lang/Object;)" + MEMORY_D);
+        returnNullMemoryIfNull(c);
+        arrayToMemory(c, 'L');
+
+        c = cw.method(ps, "of", "(Ljava/util/List;)" + MEMORY_D);
+        returnNullMemoryIfNull(c);
+        newArrayMemory(c, 1);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEINTERFACE, "java/util/List", "iterator", "()Ljava/util/Iterator;");
+        c.store('L', c.newLocal('L'));
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        c.mark(loop);
+        c.load('L', 2);
+        c.invoke(ClassFileWriter.INVOKEINTERFACE, "java/util/Iterator", "hasNext", "()Z");
+        c.jump(ClassFileWriter.IFEQ, end);
+        c.load('L', 1);
+        c.load('L', 2);
+        c.invoke(ClassFileWriter.INVOKEINTERFACE, "java/util/Iterator", "next", "()Ljava/lang/Object;");
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "ofObject", "(Ljava/lang/Object;)" + MEMORY_D);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_DESC);
+        c.op(ClassFileWriter.POP, -1);
+        c.jump(ClassFileWriter.GOTO, loop);
+        c.mark(end);
+        c.load('L', 1);
+        c.returnValue('L');
+
+        c = cw.method(ps, "ofObject", "(Ljava/lang/Object;)" + MEMORY_D);
+        returnNullMemoryIfNull(c);
+        ofObjectCase(c, MEMORY, null);
+        ofObjectCase(c, "java/lang/String", "Ljava/lang/String;");
+        ofObjectCase(c, "java/lang/Boolean", "Ljava/lang/Boolean;");
+        ofObjectCase(c, "java/lang/Number", "Ljava/lang/Number;");
+        ofObjectCase(c, "java/util/List", "Ljava/util/List;");
+        ofObjectCase(c, "[Ljava/lang/Object;", "[Ljava/lang/Object;");
+        for (char p : PRIMITIVE_ARRAYS.toCharArray()) {
+            ofObjectCase(c, "[" + p, "[" + p);
+        }
+        c.type(ClassFileWriter.NEW, STRING_MEMORY);
+        c.op(ClassFileWriter.DUP, 1);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/Object", "toString", "()Ljava/lang/String;");
+        c.invoke(ClassFileWriter.INVOKESPECIAL, STRING_MEMORY, "<init>", "(Ljava/lang/String;)V");
+        c.returnValue('L');
+
+        // Memory -> Java
+        c = cw.method(ps, "toStr", "(" + MEMORY_D + ")Ljava/lang/String;");
+        valueOrReturnNull(c);
+        c.load('L', 1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toString", "()Ljava/lang/String;");
+        c.returnValue('L');
+
+        c = cw.method(ps, "toChar", "(" + MEMORY_D + ")C");
+        ClassFileWriter.Label empty = new ClassFileWriter.Label();
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "toStr", "(" + MEMORY_D + ")Ljava/lang/String;");
+        c.store('L', c.newLocal('L'));
+        c.load('L', 1);
+        c.jump(ClassFileWriter.IFNULL, empty);
+        c.load('L', 1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "isEmpty", "()Z");
+        c.jump(ClassFileWriter.IFNE, empty);
+        c.load('L', 1);
+        c.iconst(0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/String", "charAt", "(I)C");
+        c.returnValue('C');
+        c.mark(empty);
+        c.iconst(0);
+        c.returnValue('C');
+
+        boxedBytecode(cw, "Integer", "toLong", "J", ClassFileWriter.L2I, "I");
+        boxedBytecode(cw, "Long", "toLong", "J", 0, "J");
+        boxedBytecode(cw, "Double", "toDouble", "D", 0, "D");
+        boxedBytecode(cw, "Boolean", "toBoolean", "Z", 0, "Z");
+
+        c = cw.method(ps, "toArrayMemory", "(" + MEMORY_D + ")L" + ARRAY_MEMORY + ";");
+        valueOrReturnNull(c);
+        ClassFileWriter.Label notArray = typeIsNot(c, "ARRAY");
+        c.load('L', 1);
+        c.type(ClassFileWriter.CHECKCAST, ARRAY_MEMORY);
+        c.returnValue('L');
+        // throw new IllegalArgumentException("ожидается массив, передано: " + v.type)
+        c.mark(notArray);
+        c.type(ClassFileWriter.NEW, "java/lang/IllegalArgumentException");
+        c.op(ClassFileWriter.DUP, 1);
+        c.type(ClassFileWriter.NEW, "java/lang/StringBuilder");
+        c.op(ClassFileWriter.DUP, 1);
+        c.ldc(NOT_ARRAY);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V");
+        c.load('L', 1);
+        c.field(ClassFileWriter.GETFIELD, MEMORY, "type", "L" + TYPE + ";");
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                "(Ljava/lang/Object;)Ljava/lang/StringBuilder;");
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+        c.invoke(ClassFileWriter.INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "(Ljava/lang/String;)V");
+        c.op(ClassFileWriter.ATHROW, -1);
+
+        arrayBytecode(cw, 'I');
+        arrayBytecode(cw, 'J');
+        arrayBytecode(cw, 'D');
+        arrayBytecode(cw, 'Z');
+        arrayBytecode(cw, 'S'); // String[]
+        arrayBytecode(cw, 'O'); // Object[]
+
+        c = cw.method(ps, "toList", "(" + MEMORY_D + ")Ljava/util/ArrayList;");
+        int a = arrayMemoryOrReturnNull(c);
+        c.type(ClassFileWriter.NEW, "java/util/ArrayList");
+        c.op(ClassFileWriter.DUP, 1);
+        c.load('L', a);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "size", "()I");
+        c.invoke(ClassFileWriter.INVOKESPECIAL, "java/util/ArrayList", "<init>", "(I)V");
+        int r = c.newLocal('L');
+        c.store('L', r);
+        int it = iterator(c, a);
+        loop = new ClassFileWriter.Label();
+        end = new ClassFileWriter.Label();
+        c.mark(loop);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, FOREACH, "next", "()Z");
+        c.jump(ClassFileWriter.IFEQ, end);
+        c.load('L', r);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, FOREACH, "getValue", "()" + MEMORY_D);
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "toObject", "(" + MEMORY_D + ")Ljava/lang/Object;");
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, "java/util/ArrayList", "add", "(Ljava/lang/Object;)Z");
+        c.op(ClassFileWriter.POP, -1);
+        c.jump(ClassFileWriter.GOTO, loop);
+        c.mark(end);
+        c.load('L', r);
+        c.returnValue('L');
+
+        c = cw.method(ps, "toObject", "(" + MEMORY_D + ")Ljava/lang/Object;");
+        valueOrReturnNull(c);
+        toObjectCase(c, "BOOL", "toBoolean", "Z", "java/lang/Boolean");
+        toObjectCase(c, "INT", "toLong", "J", "java/lang/Long");
+        toObjectCase(c, "DOUBLE", "toDouble", "D", "java/lang/Double");
+        ClassFileWriter.Label next = typeIsNot(c, "STRING");
+        c.load('L', 1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toString", "()Ljava/lang/String;");
+        c.returnValue('L');
+        c.mark(next);
+        next = typeIsNot(c, "ARRAY");
+        c.load('L', 1);
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "toList", "(" + MEMORY_D + ")Ljava/util/ArrayList;");
+        c.returnValue('L');
+        c.mark(next);
+        // объект обёртки, держащей Java-объект, -> сам Java-объект
+        ClassFileWriter.Label plain = new ClassFileWriter.Label();
+        c.load('L', 1);
+        c.type(ClassFileWriter.INSTANCEOF, OBJECT_MEMORY);
+        c.jump(ClassFileWriter.IFEQ, plain);
+        c.load('L', 1);
+        c.type(ClassFileWriter.CHECKCAST, OBJECT_MEMORY);
+        c.field(ClassFileWriter.GETFIELD, OBJECT_MEMORY, "value", "Lphp/runtime/lang/IObject;");
+        int held = c.newLocal('L');
+        c.store('L', held);
+        c.load('L', held);
+        c.type(ClassFileWriter.INSTANCEOF, HOLDER);
+        c.jump(ClassFileWriter.IFEQ, plain);
+        c.load('L', held);
+        c.type(ClassFileWriter.CHECKCAST, HOLDER);
+        c.invoke(ClassFileWriter.INVOKEINTERFACE, HOLDER, "unwrap", "()Ljava/lang/Object;");
+        c.returnValue('L');
+        c.mark(plain);
+        c.load('L', 1);
+        c.returnValue('L');
+
+        c = cw.method(ps, "typeBit", "(" + MEMORY_D + ")I");
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toValue", "()" + MEMORY_D);
+        c.store('L', c.newLocal('L'));
+        for (int i = 0; i < TYPE_BITS.length; i++) {
+            next = typeIsNot(c, TYPE_BITS[i]);
+            c.iconst(1 << i);
+            c.returnValue('I');
+            c.mark(next);
+        }
+        c.iconst(Overloads.OBJECT);
+        c.returnValue('I');
+
+        // new IllegalArgumentException(method + "(): ..." + given + ", ...: " + expected)
+        String sb = "java/lang/StringBuilder";
+        String append = "(Ljava/lang/String;)L" + sb + ";";
+        c = cw.method(ps, "arity", "(Ljava/lang/String;ILjava/lang/String;)Ljava/lang/IllegalArgumentException;");
+        c.type(ClassFileWriter.NEW, "java/lang/IllegalArgumentException");
+        c.op(ClassFileWriter.DUP, 1);
+        c.type(ClassFileWriter.NEW, sb);
+        c.op(ClassFileWriter.DUP, 1);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, sb, "<init>", "(Ljava/lang/String;)V");
+        c.ldc(ARITY_GIVEN);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, sb, "append", append);
+        c.load('I', 1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, sb, "append", "(I)L" + sb + ";");
+        c.ldc(ARITY_EXPECTED);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, sb, "append", append);
+        c.load('L', 2);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, sb, "append", append);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, sb, "toString", "()Ljava/lang/String;");
+        c.invoke(ClassFileWriter.INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "(Ljava/lang/String;)V");
+        c.returnValue('L');
+
+        // batch: if (args.length != 1) throw arity(...); a = toArrayMemory(args[0]) или пустой массив
+        c = cw.method(ps, "batch", "(Ljava/lang/String;[" + MEMORY_D + ")L" + FOREACH + ";");
+        ClassFileWriter.Label wrong = new ClassFileWriter.Label();
+        c.load('L', 1);
+        c.op(ClassFileWriter.ARRAYLENGTH, 0);
+        c.iconst(1);
+        c.jump(ClassFileWriter.IF_ICMPNE, wrong);
+        c.load('L', 1);
+        c.iconst(0);
+        c.op(ClassFileWriter.AALOAD, -1);
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "toArrayMemory", "(" + MEMORY_D + ")L" + ARRAY_MEMORY + ";");
+        a = c.newLocal('L');
+        c.store('L', a);
+        ClassFileWriter.Label some = new ClassFileWriter.Label();
+        c.load('L', a);
+        c.jump(ClassFileWriter.IFNONNULL, some);
+        c.type(ClassFileWriter.NEW, ARRAY_MEMORY);
+        c.op(ClassFileWriter.DUP, 1);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, ARRAY_MEMORY, "<init>", "()V");
+        c.store('L', a);
+        c.mark(some);
+        c.load('L', iterator(c, a));
+        c.returnValue('L');
+        c.mark(wrong);
+        c.load('L', 0);
+        c.load('L', 1);
+        c.op(ClassFileWriter.ARRAYLENGTH, 0);
+        c.ldc("1");
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "arity", "(Ljava/lang/String;ILjava/lang/String;)Ljava/lang/IllegalArgumentException;");
+        c.op(ClassFileWriter.ATHROW, -1);
+
+        // tuple: не массив -> {v}, массив -> его значения по порядку
+        c = cw.method(ps, "tuple", "(" + MEMORY_D + ")[" + MEMORY_D);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toValue", "()" + MEMORY_D);
+        c.store('L', c.newLocal('L'));
+        next = typeIsNot(c, "ARRAY");
+        a = c.newLocal('L');
+        c.load('L', 1);
+        c.type(ClassFileWriter.CHECKCAST, ARRAY_MEMORY);
+        c.store('L', a);
+        c.load('L', a);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "size", "()I");
+        c.type(ClassFileWriter.ANEWARRAY, MEMORY);
+        r = c.newLocal('L');
+        c.store('L', r);
+        it = iterator(c, a);
+        int i = c.newLocal('I');
+        c.iconst(0);
+        c.store('I', i);
+        loop = new ClassFileWriter.Label();
+        end = new ClassFileWriter.Label();
+        c.mark(loop);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, FOREACH, "next", "()Z");
+        c.jump(ClassFileWriter.IFEQ, end);
+        c.load('L', r);
+        c.load('I', i);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, FOREACH, "getValue", "()" + MEMORY_D);
+        c.op(ClassFileWriter.AASTORE, -3);
+        c.iinc(i, 1);
+        c.jump(ClassFileWriter.GOTO, loop);
+        c.mark(end);
+        c.load('L', r);
+        c.returnValue('L');
+        c.mark(next);
+        c.iconst(1);
+        c.type(ClassFileWriter.ANEWARRAY, MEMORY);
+        c.op(ClassFileWriter.DUP, 1);
+        c.iconst(0);
+        c.load('L', 1);
+        c.op(ClassFileWriter.AASTORE, -3);
+        c.returnValue('L');
+
+        return cw.toByteArray();
+    }
+
+    // if (arg0 == null) return Memory.NULL;
+    private static void returnNullMemoryIfNull(ClassFileWriter.Code c) {
+        ClassFileWriter.Label ok = new ClassFileWriter.Label();
+        c.load('L', 0);
+        c.jump(ClassFileWriter.IFNONNULL, ok);
+        c.field(ClassFileWriter.GETSTATIC, MEMORY, "NULL", MEMORY_D);
+        c.returnValue('L');
+        c.mark(ok);
+    }
+
+    // if (m == null) return null; Memory v = m.toValue() (слот 1); if (v.type == NULL) return null;
+    private static void valueOrReturnNull(ClassFileWriter.Code c) {
+        ClassFileWriter.Label ok = new ClassFileWriter.Label();
+        c.load('L', 0);
+        c.jump(ClassFileWriter.IFNONNULL, ok);
+        c.op(ClassFileWriter.ACONST_NULL, 1);
+        c.returnValue('L');
+        c.mark(ok);
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toValue", "()" + MEMORY_D);
+        c.store('L', c.newLocal('L'));
+        ClassFileWriter.Label notNull = typeIsNot(c, "NULL");
+        c.op(ClassFileWriter.ACONST_NULL, 1);
+        c.returnValue('L');
+        c.mark(notNull);
+    }
+
+    // ArrayMemory a = toArrayMemory(m); if (a == null) return null; — возвращает слот a
+    private static int arrayMemoryOrReturnNull(ClassFileWriter.Code c) {
+        c.load('L', 0);
+        c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "toArrayMemory", "(" + MEMORY_D + ")L" + ARRAY_MEMORY + ";");
+        int a = c.newLocal('L');
+        c.store('L', a);
+        ClassFileWriter.Label ok = new ClassFileWriter.Label();
+        c.load('L', a);
+        c.jump(ClassFileWriter.IFNONNULL, ok);
+        c.op(ClassFileWriter.ACONST_NULL, 1);
+        c.returnValue('L');
+        c.mark(ok);
+        return a;
+    }
+
+    // ForeachIterator it = a.foreachIterator(false, false); — возвращает слот it
+    private static int iterator(ClassFileWriter.Code c, int a) {
+        c.load('L', a);
+        c.iconst(0);
+        c.iconst(0);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "foreachIterator", "(ZZ)L" + FOREACH + ";");
+        int it = c.newLocal('L');
+        c.store('L', it);
+        return it;
+    }
+
+    // переход на возвращённую метку, если тип значения в слоте 1 не равен type
+    private static ClassFileWriter.Label typeIsNot(ClassFileWriter.Code c, String type) {
+        ClassFileWriter.Label next = new ClassFileWriter.Label();
+        c.load('L', 1);
+        c.field(ClassFileWriter.GETFIELD, MEMORY, "type", "L" + TYPE + ";");
+        c.field(ClassFileWriter.GETSTATIC, TYPE, type, "L" + TYPE + ";");
+        c.jump(ClassFileWriter.IF_ACMPNE, next);
+        return next;
+    }
+
+    // new Xxx(arg) из слота slot
+    private static void newMemory(ClassFileWriter.Code c, String cls, String argType, char load, int slot) {
+        c.type(ClassFileWriter.NEW, cls);
+        c.op(ClassFileWriter.DUP, 1);
+        c.load(load, slot);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, cls, "<init>", "(" + argType + ")V");
+    }
+
+    // ArrayMemory r = new ArrayMemory() в слот slot
+    private static void newArrayMemory(ClassFileWriter.Code c, int slot) {
+        c.type(ClassFileWriter.NEW, ARRAY_MEMORY);
+        c.op(ClassFileWriter.DUP, 1);
+        c.invoke(ClassFileWriter.INVOKESPECIAL, ARRAY_MEMORY, "<init>", "()V");
+        c.store('L', c.newLocal('L'));
+    }
+
+    // for (int i = 0; i < a.length; i++) r.add(a[i]); return r;  (a — слот 0, элемент p или 'L')
+    private static void arrayToMemory(ClassFileWriter.Code c, char p) {
+        newArrayMemory(c, 1);
+        int i = c.newLocal('I');
+        c.iconst(0);
+        c.store('I', i);
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        c.mark(loop);
+        c.load('I', i);
+        c.load('L', 0);
+        c.op(ClassFileWriter.ARRAYLENGTH, 0);
+        c.jump(ClassFileWriter.IF_ICMPGE, end);
+        c.load('L', 1);
+        c.load('L', 0);
+        c.load('I', i);
+        switch (p) {
+            case 'I':
+                c.op(ClassFileWriter.IALOAD, -1);
+                c.op(ClassFileWriter.I2L, 1);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_LONG_DESC);
+                break;
+            case 'S':
+                c.op(ClassFileWriter.SALOAD, -1);
+                c.op(ClassFileWriter.I2L, 1);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_LONG_DESC);
+                break;
+            case 'B':
+                c.op(ClassFileWriter.BALOAD, -1);
+                c.op(ClassFileWriter.I2L, 1);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_LONG_DESC);
+                break;
+            case 'J':
+                c.op(ClassFileWriter.LALOAD, 0);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_LONG_DESC);
+                break;
+            case 'Z':
+                c.op(ClassFileWriter.BALOAD, -1);
+                c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "of", "(Z)" + MEMORY_D);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_DESC);
+                break;
+            case 'F':
+                c.op(ClassFileWriter.FALOAD, -1);
+                c.op(ClassFileWriter.F2D, 1);
+                c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "of", "(D)" + MEMORY_D);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_DESC);
+                break;
+            case 'D':
+                c.op(ClassFileWriter.DALOAD, 0);
+                c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "of", "(D)" + MEMORY_D);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_DESC);
+                break;
+            default:
+                c.op(ClassFileWriter.AALOAD, -1);
+                c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "ofObject", "(Ljava/lang/Object;)" + MEMORY_D);
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "add", ADD_DESC);
+                break;
+        }
+        c.op(ClassFileWriter.POP, -1);
+        c.iinc(i, 1);
+        c.jump(ClassFileWriter.GOTO, loop);
+        c.mark(end);
+        c.load('L', 1);
+        c.returnValue('L');
+    }
+
+    // if (o instanceof type) return of((type) o);  ofDesc == null — вернуть сам o
+    private static void ofObjectCase(ClassFileWriter.Code c, String type, String ofDesc) {
+        ClassFileWriter.Label next = new ClassFileWriter.Label();
+        c.load('L', 0);
+        c.type(ClassFileWriter.INSTANCEOF, type);
+        c.jump(ClassFileWriter.IFEQ, next);
+        c.load('L', 0);
+        c.type(ClassFileWriter.CHECKCAST, type);
+        if (ofDesc != null) {
+            c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "of", "(" + ofDesc + ")" + MEMORY_D);
+        }
+        c.returnValue('L');
+        c.mark(next);
+    }
+
+    // if (v.type == TYPE) return Boxed.valueOf(v.getter());
+    private static void toObjectCase(ClassFileWriter.Code c, String type, String getter, String prim, String boxed) {
+        ClassFileWriter.Label next = typeIsNot(c, type);
+        c.load('L', 1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, getter, "()" + prim);
+        c.invoke(ClassFileWriter.INVOKESTATIC, boxed, "valueOf", "(" + prim + ")L" + boxed + ";");
+        c.returnValue('L');
+        c.mark(next);
+    }
+
+    private static void boxedBytecode(ClassFileWriter cw, String type, String getter, String getterType,
+                                      int narrow, String prim) {
+        String boxed = "java/lang/" + type;
+        ClassFileWriter.Code c = cw.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC,
+                "to" + type + "Object", "(" + MEMORY_D + ")L" + boxed + ";");
+        valueOrReturnNull(c);
+        c.load('L', 1);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, getter, "()" + getterType);
+        if (narrow != 0) {
+            c.op(narrow, -1);
+        }
+        c.invoke(ClassFileWriter.INVOKESTATIC, boxed, "valueOf", "(" + prim + ")L" + boxed + ";");
+        c.returnValue('L');
+    }
+
+    /**
+     * toXxxArray: kind — I, J, D, Z, S (String[]) или O (Object[]).
+     */
+    private static void arrayBytecode(ClassFileWriter cw, char kind) {
+        String name;
+        String desc;
+        switch (kind) {
+            case 'I': name = "toIntArray"; desc = "[I"; break;
+            case 'J': name = "toLongArray"; desc = "[J"; break;
+            case 'D': name = "toDoubleArray"; desc = "[D"; break;
+            case 'Z': name = "toBooleanArray"; desc = "[Z"; break;
+            case 'S': name = "toStringArray"; desc = "[Ljava/lang/String;"; break;
+            default:  name = "toObjectArray"; desc = "[Ljava/lang/Object;"; break;
+        }
+        ClassFileWriter.Code c = cw.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC,
+                name, "(" + MEMORY_D + ")" + desc);
+        int a = arrayMemoryOrReturnNull(c);
+        c.load('L', a);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY_MEMORY, "size", "()I");
+        if (kind == 'S') {
+            c.type(ClassFileWriter.ANEWARRAY, "java/lang/String");
+        } else if (kind == 'O') {
+            c.type(ClassFileWriter.ANEWARRAY, "java/lang/Object");
+        } else {
+            c.newArray(kind);
+        }
+        int r = c.newLocal('L');
+        c.store('L', r);
+        int it = iterator(c, a);
+        int i = c.newLocal('I');
+        c.iconst(0);
+        c.store('I', i);
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        c.mark(loop);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, FOREACH, "next", "()Z");
+        c.jump(ClassFileWriter.IFEQ, end);
+        c.load('L', r);
+        c.load('I', i);
+        c.load('L', it);
+        c.invoke(ClassFileWriter.INVOKEVIRTUAL, FOREACH, "getValue", "()" + MEMORY_D);
+        switch (kind) {
+            case 'I':
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toLong", "()J");
+                c.op(ClassFileWriter.L2I, -1);
+                c.op(ClassFileWriter.IASTORE, -3);
+                break;
+            case 'J':
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toLong", "()J");
+                c.op(ClassFileWriter.LASTORE, -4);
+                break;
+            case 'D':
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toDouble", "()D");
+                c.op(ClassFileWriter.DASTORE, -4);
+                break;
+            case 'Z':
+                c.invoke(ClassFileWriter.INVOKEVIRTUAL, MEMORY, "toBoolean", "()Z");
+                c.op(ClassFileWriter.BASTORE, -3);
+                break;
+            case 'S':
+                c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "toStr", "(" + MEMORY_D + ")Ljava/lang/String;");
+                c.op(ClassFileWriter.AASTORE, -3);
+                break;
+            default:
+                c.invoke(ClassFileWriter.INVOKESTATIC, CLASS, "toObject", "(" + MEMORY_D + ")Ljava/lang/Object;");
+                c.op(ClassFileWriter.AASTORE, -3);
+                break;
+        }
+        c.iinc(i, 1);
+        c.jump(ClassFileWriter.GOTO, loop);
+        c.mark(end);
+        c.load('L', r);
+        c.returnValue('L');
+    }
+}
@@ -0,0 +1,229 @@
+package meigo.studio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Метрики одной конвертации (--metrics): время фаз, скорость, пропущенные и упавшие классы,
+ * пиковая куча. Пишутся одним JSON-файлом после конвертации.
+ *
+ * Фазы: enumerate (список классов), analyze, php (заглушки), java (обёртки, Marshal, Extension
+ * и компиляция). В обычном режиме это время по часам; в потоковом фазы идут одновременно,
+ * поэтому analyze — сумма времени анализа отдельных классов во всех потоках, php и java —
+ * время записи, а общее время — только total.
+ */
+final class Metrics implements AutoCloseable {
+    /** Поток, который ничего не пишет: подробный лог в режиме --quiet */
+    static final PrintStream SILENT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    // конвертации, идущие сейчас в этой JVM
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private final long started = System.nanoTime();
+    private final String library;
+    private final Options options;
+    private final Map<String, Long> phases = new LinkedHashMap<>();   // имя -> наносекунды
+    private final Map<String, Integer> skipped = new TreeMap<>();     // причина -> классов
+    private final Map<String, String> failed = new TreeMap<>();       // класс -> ошибка
+    // пики пулов кучи сброшены этой конвертацией: пока она шла, других не было
+    private final boolean ownPeak;
+
+    int classes;
+    int analyzedClasses;
+    int convertedClasses;
+    int declaredMethods;
+    int compatibleMethods;   // как COMPATIBLE METHODS в логе: после --entry
+    int cacheHits;
+
+    Metrics(String library, Options options) {
+        this.library = library;
+        this.options = options;
+        // порядок фаз в отчёте не зависит от режима
+        for (String name : new String[] {"enumerate", "analyze", "php", "java"}) {
+            phases.put(name, 0L);
+        }
+        // пики пулов общие для JVM: их сбрасывает только конвертация с --metrics, начатая, когда
+        // других нет (--batch --jobs, клиенты демона) — иначе сброс испортил бы их пики
+        boolean alone = ACTIVE.getAndIncrement() == 0;
+        ownPeak = alone && options.metricsFile != null;
+        if (ownPeak) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+        }
+    }
+
+    /** Конвертация закончилась (отчёт уже записан) */
+    @Override
+    public void close() {
+        ACTIVE.decrementAndGet();
+    }
+
+    /** Добавляет к фазе name время с момента since (System.nanoTime()) */
+    void phase(String name, long since) {
+        phaseNanos(name, System.nanoTime() - since);
+    }
+
+    void phaseNanos(String name, long nanos) {
+        Long old = phases.get(name);
+        phases.put(name, old == null ? nanos : old + nanos);
+    }
+
+    /**
+     * Учитывает результат анализа одного класса.
+     */
+    void classResult(Main.ClassResult r) {
+        if (r.skipped) {
+            skip("внутренний класс");
+            return;
+        }
+        analyzedClasses++;
+        declaredMethods += r.declaredMethods;
+        if (r.cached != null) {
+            cacheHits++;
+        }
+        if (r.error != null) {
+            failed.put(r.className, r.error);
+        } else if (r.methods.isEmpty()) {
+            skip("нет совместимых методов");
+        }
+    }
+
+    void skip(String reason) {
+        Integer old = skipped.get(reason);
+        skipped.put(reason, old == null ? 1 : old + 1);
+    }
+
+    /**
+     * Пишет отчёт в file (UTF-8).
+     */
+    void write(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write(toJson());
+        }
+    }
+
+    String toJson() {
+        long total = System.nanoTime() - started;
+        double seconds = total / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"library\": ").append(string(library)).append(",\n");
+        sb.append("  \"mode\": ").append(string(options.stream ? "stream" : "full")).append(",\n");
+        sb.append("  \"backend\": ").append(string(options.bytecode ? "bytecode" : "source")).append(",\n");
+        sb.append("  \"threads\": ").append(options.threads).append(",\n");
+        sb.append("  \"phasesMs\": {");
+        for (Map.Entry<String, Long> e : phases.entrySet()) {
+            sb.append("\n    ").append(string(e.getKey())).append(": ").append(millis(e.getValue())).append(",");
+        }
+        sb.append("\n    \"total\": ").append(millis(total)).append("\n  },\n");
+        sb.append("  \"classes\": {\n");
+        sb.append("    \"total\": ").append(classes).append(",\n");
+        sb.append("    \"analyzed\": ").append(analyzedClasses).append(",\n");
+        sb.append("    \"converted\": ").append(convertedClasses).append(",\n");
+        sb.append("    \"cacheHits\": ").append(cacheHits).append(",\n");
+        sb.append("    \"skipped\": ").append(object(skipped, "    ")).append(",\n");
+        sb.append("    \"failed\": ").append(object(failed, "    ")).append("\n");
+        sb.append("  },\n");
+        sb.append("  \"methods\": {\n");
+        sb.append("    \"declared\": ").append(declaredMethods).append(",\n");
+        sb.append("    \"compatible\": ").append(compatibleMethods).append("\n");
+        sb.append("  },\n");
+        sb.append("  \"classesPerSecond\": ").append(rate(classes, seconds)).append(",\n");
+        sb.append("  \"methodsPerSecond\": ").append(rate(declaredMethods, seconds)).append(",\n");
+        sb.append("  \"peakHeapBytes\": ").append(peakHeap()).append(",\n");
+        sb.append("  \"peakHeapScope\": ").append(string(ownPeak ? "conversion" : "shared")).append("\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Сумма пиков по пулам кучи (пики пулов могли быть в разное время, так что это оценка сверху).
+     * В отчёте peakHeapScope: conversion — пики считаются с начала этой конвертации, shared —
+     * одновременно шли другие конвертации, и пик включает их (и, в демоне, прошлые запуски).
+     */
+    static long peakHeap() {
+        long sum = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                sum += pool.getPeakUsage().getUsed();
+            }
+        }
+        return sum;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(java.util.Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String rate(long count, double seconds) {
+        return String.format(java.util.Locale.ROOT, "%.1f", seconds > 0 ? count / seconds : 0.0);
+    }
+
+    private static String object(Map<String, ?> map, String indent) {
+        if (map.isEmpty()) {
+            return "{}";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        String sep = "\n";
+        for (Map.Entry<String, ?> e : map.entrySet()) {
+            Object v = e.getValue();
+            sb.append(sep).append(indent).append("  ").append(string(e.getKey())).append(": ")
+                    .append(v instanceof String ? string((String) v) : String.valueOf(v));
+            sep = ",\n";
+        }
+        return sb.append("\n").append(indent).append("}").toString();
+    }
+
+    // строка JSON с экранированием
+    private static String string(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
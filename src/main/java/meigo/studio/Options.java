@@ -0,0 +1,226 @@
+package meigo.studio;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Аргументы командной строки в виде --name=value или --flag.
+ * Относительные пути считаются от текущей папки, а у запросов к демону — от папки клиента.
+ */
+final class Options {
+    /** Сколько потоков анализирует классы; 1 — последовательный режим */
+    int threads = 1;
+    /** Папка инкрементального кеша; null — кеш выключен */
+    File cacheDir;
+    /** Пакетный режим: jar-файлы и папки через path.separator; null — одна библиотека из classpath */
+    String batch;
+    /** Куда складывать результаты пакетного режима */
+    File outDir = new File("bundles");
+    /** Сколько библиотек конвертируется одновременно в пакетном режиме */
+    int jobs = Runtime.getRuntime().availableProcessors();
+    /** Потоковый режим: каждый класс пишется сразу после анализа, без общего SUMMARY */
+    boolean stream;
+    /** Сколько классов может быть "в полёте" между чтением и записью в потоковом режиме */
+    int streamWindow = 256;
+    /** Писать результат сразу в .dnbundle вместо папок sdk/ и tmp/ */
+    boolean bundle;
+    /** Явный путь .dnbundle (только для одной библиотеки); null — <имя jar>.dnbundle */
+    File bundleFile;
+    /** Компилировать обёртки в процессе (нужен JDK и --jphp-runtime) */
+    boolean compile;
+    /** jar с jphp-runtime для компиляции обёрток */
+    File jphpRuntime;
+    /** Писать обёртки сразу байткодом (--backend=bytecode) вместо Java-исходников */
+    boolean bytecode;
+    /** Не печатать строк на каждый класс и метод: только итоговую статистику и ошибки */
+    boolean quiet;
+    /** Куда писать JSON-отчёт с метриками; null — не писать */
+    File metricsFile;
+    /** Дополнительный список исключений к CONVERT_IGNORE; null — только встроенный */
+    File ignoreFile;
+    /** Список включаемых классов; null — все, кроме исключённых */
+    File includeFile;
+    /** Фильтр классов, собранный из CONVERT_IGNORE, --ignore и --include */
+    ClassFilter filter = ClassFilter.ALL;
+    /** Точки входа (--entry): генерируются только достижимые из них классы; null — все */
+    Reachability.Entries entries;
+    /** Extension регистрирует обёртки лениво, по компактному индексу имён (JTJ.runtime.Registry) */
+    boolean lazy;
+    /** К каждому статическому методу name добавляется nameBatch(array $argTuples) */
+    boolean batchCalls;
+    /** Запустить демон (--daemon): конвертации по запросам клиентов, состояние между ними в памяти */
+    boolean daemon;
+    /** Порт демона на 127.0.0.1; 0 — любой свободный (клиент узнаёт его из файла демона) */
+    int daemonPort;
+    /** Отправить конвертацию запущенному демону (--client) вместо конвертации в этой JVM */
+    boolean client;
+    /** Вместе с --client: остановить демон */
+    boolean stop;
+    /** Кеш конвертации: из --cache или кеш демона в памяти; null — выключен */
+    ConversionCache cache;
+
+    static Options parse(String[] args) {
+        return parse(args, null);
+    }
+
+    /**
+     * base — папка, от которой считаются относительные пути (null — текущая).
+     */
+    static Options parse(String[] args, File base) {
+        Options o = new Options();
+        for (String arg : args) {
+            String name = arg;
+            String value = null;
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                name = arg.substring(0, eq);
+                value = arg.substring(eq + 1);
+            }
+            switch (name) {
+                case "--threads":
+                    // --threads без значения — по числу ядер
+                    o.threads = value == null
+                            ? Runtime.getRuntime().availableProcessors()
+                            : Integer.parseInt(value);
+                    if (o.threads < 1) {
+                        throw new IllegalArgumentException("--threads должен быть >= 1");
+                    }
+                    break;
+                case "--cache":
+                    o.cacheDir = file(base, value == null ? ".jtj-cache" : value);
+                    break;
+                case "--batch":
+                    if (value == null || value.isEmpty()) {
+                        throw new IllegalArgumentException("--batch требует список jar-файлов или папку");
+                    }
+                    o.batch = value;
+                    break;
+                case "--out":
+                    if (value == null || value.isEmpty()) {
+                        throw new IllegalArgumentException("--out требует путь");
+                    }
+                    o.outDir = file(base, value);
+                    break;
+                case "--jobs":
+                    o.jobs = value == null ? o.jobs : Integer.parseInt(value);
+                    if (o.jobs < 1) {
+                        throw new IllegalArgumentException("--jobs должен быть >= 1");
+                    }
+                    break;
+                case "--stream":
+                    o.stream = true;
+                    if (value != null) {
+                        o.streamWindow = Integer.parseInt(value);
+                        if (o.streamWindow < 1) {
+                            throw new IllegalArgumentException("--stream должен быть >= 1");
+                        }
+                    }
+                    break;
+                case "--bundle":
+                    o.bundle = true;
+                    if (value != null && !value.isEmpty()) {
+                        o.bundleFile = file(base, value);
+                    }
+                    break;
+                case "--compile":
+                    o.compile = true;
+                    break;
+                case "--jphp-runtime":
+                    if (value == null || value.isEmpty()) {
+                        throw new IllegalArgumentException("--jphp-runtime требует путь к jar");
+                    }
+                    o.jphpRuntime = file(base, value);
+                    break;
+                case "--backend":
+                    if ("bytecode".equals(value)) {
+                        o.bytecode = true;
+                    } else if ("source".equals(value)) {
+                        o.bytecode = false;
+                    } else {
+                        throw new IllegalArgumentException("--backend должен быть source или bytecode");
+                    }
+                    break;
+                case "--entry":
+                    if (value == null || value.isEmpty()) {
+                        throw new IllegalArgumentException("--entry требует путь к списку точек входа");
+                    }
+                    try {
+                        o.entries = Reachability.Entries.load(file(base, value));
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Не удалось прочитать точки входа: " + e.getMessage());
+                    }
+                    break;
+                case "--lazy":
+                    o.lazy = true;
+                    break;
+                case "--batch-calls":
+                    o.batchCalls = true;
+                    break;
+                case "--daemon":
+                    o.daemon = true;
+                    o.daemonPort = value == null ? 0 : Integer.parseInt(value);
+                    if (o.daemonPort < 0 || o.daemonPort > 65535) {
+                        throw new IllegalArgumentException("--daemon: неверный порт " + value);
+                    }
+                    break;
+                case "--client":
+                    o.client = true;
+                    break;
+                case "--stop":
+                    o.stop = true;
+                    break;
+                case "--quiet":
+                    o.quiet = true;
+                    break;
+                case "--metrics":
+                    o.metricsFile = file(base, value == null || value.isEmpty() ? "metrics.json" : value);
+                    break;
+                case "--ignore":
+                case "--include":
+                    if (value == null || value.isEmpty()) {
+                        throw new IllegalArgumentException(name + " требует путь к списку шаблонов");
+                    }
+                    if (name.equals("--ignore")) {
+                        o.ignoreFile = file(base, value);
+                    } else {
+                        o.includeFile = file(base, value);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Неизвестный аргумент: " + arg);
+            }
+        }
+        if (o.compile && o.jphpRuntime == null) {
+            throw new IllegalArgumentException("--compile требует --jphp-runtime=<jphp-runtime.jar>");
+        }
+        if (o.entries != null && o.stream) {
+            throw new IllegalArgumentException("--entry не работает с --stream: для обхода нужен весь граф классов");
+        }
+        if (o.daemon && o.client) {
+            throw new IllegalArgumentException("--daemon и --client нельзя указывать вместе");
+        }
+        if (o.stop && !o.client) {
+            throw new IllegalArgumentException("--stop работает только с --client");
+        }
+        if (o.client && o.batch != null) {
+            throw new IllegalArgumentException("--batch через --client не поддерживается: демон держит по одной библиотеке на запрос");
+        }
+        if (o.compile && o.bytecode) {
+            throw new IllegalArgumentException("--compile не нужен с --backend=bytecode: обёртки уже пишутся классами");
+        }
+        try {
+            o.filter = ClassFilter.load(o.ignoreFile, o.includeFile);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Не удалось прочитать список шаблонов: " + e.getMessage());
+        }
+        if (o.cacheDir != null) {
+            o.cache = new ConversionCache(o.cacheDir, o, null);
+        }
+        return o;
+    }
+
+    private static File file(File base, String path) {
+        File f = new File(path);
+        return base == null || f.isAbsolute() ? f : new File(base, path);
+    }
+}
@@ -0,0 +1,271 @@
+package meigo.studio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Перегрузки Java-методов в одном PHP-методе.
+ *
+ * Все перегрузки с одним именем попадают в один метод обёртки. Его тело выбирает перегрузку
+ * сначала по числу аргументов (switch), затем, если при этом числе их несколько, по типу
+ * значений Memory: Marshal.typeBit(args[i]) даёт один бит на тип, и каждая перегрузка
+ * проверяется одной маской на параметр. Маски, число аргументов и порядок проверки
+ * вычисляются здесь, при генерации, — при вызове нет ни рефлексии, ни перехвата исключений.
+ */
+final class Overloads {
+    // биты Marshal.typeBit — по одному на Memory.Type
+    static final int NULL   = 1;
+    static final int BOOL   = 2;
+    static final int INT    = 4;
+    static final int DOUBLE = 8;
+    static final int STRING = 16;
+    static final int ARRAY  = 32;
+    static final int OBJECT = 64;
+    static final int ANY    = 127;
+
+    private Overloads() {
+    }
+
+    /**
+     * Перегрузки с одним числом аргументов в порядке проверки: сначала самые узкие по типам,
+     * последняя вызывается без проверки, если ни одна другая не подошла.
+     */
+    static final class Arity {
+        final int count;
+        final List<Main.MethodInfo> candidates = new ArrayList<>();
+        /** Для каждого кандидата — маски его параметров (без Environment) */
+        final List<int[]> masks = new ArrayList<>();
+        /** Позиции аргументов, по которым кандидаты различаются: только их тип и читается */
+        final List<Integer> positions = new ArrayList<>();
+
+        Arity(int count) {
+            this.count = count;
+        }
+
+        /**
+         * Маски проверки кандидата i по positions (ANY — позицию проверять не нужно).
+         * Для последнего кандидата проверки нет: он запасной.
+         */
+        int[] checks(int i) {
+            int[] r = new int[positions.size()];
+            for (int p = 0; p < r.length; p++) {
+                r[p] = i == candidates.size() - 1 ? ANY : masks.get(i)[positions.get(p)];
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Группирует методы по имени в порядке первого появления.
+     */
+    static Map<String, List<Main.MethodInfo>> byName(List<Main.MethodInfo> methods) {
+        Map<String, List<Main.MethodInfo>> r = new LinkedHashMap<>();
+        for (Main.MethodInfo mi : methods) {
+            r.computeIfAbsent(name(mi), k -> new ArrayList<>()).add(mi);
+        }
+        return r;
+    }
+
+    /**
+     * Перегрузки, до которых выбор никогда не дойдёт: их маски совпадают с масками другой
+     * перегрузки того же имени (abs(int) и abs(long), f(float) и f(double)), а значения PHP
+     * у них одни и те же. Из каждого такого набора остаётся перегрузка с самыми широкими
+     * примитивами (long вместо int, double вместо float), при равенстве — объявленная первой.
+     * Ключ — недостижимая перегрузка, значение — та, что вызывается вместо неё.
+     */
+    static Map<Main.MethodInfo, Main.MethodInfo> shadowed(List<Main.MethodInfo> group) {
+        Map<Main.MethodInfo, Main.MethodInfo> r = new LinkedHashMap<>();
+        Map<String, Main.MethodInfo> kept = new LinkedHashMap<>();
+        for (Main.MethodInfo mi : group) {
+            String key = Arrays.toString(masks(mi));
+            Main.MethodInfo other = kept.get(key);
+            if (other == null) {
+                kept.put(key, mi);
+            } else if (precision(mi) > precision(other)) {
+                kept.put(key, mi);
+                r.put(other, mi);
+            } else {
+                r.put(mi, other);
+            }
+        }
+        // вытесненная перегрузка могла сама вытеснить другие раньше
+        for (Map.Entry<Main.MethodInfo, Main.MethodInfo> e : r.entrySet()) {
+            e.setValue(kept.get(Arrays.toString(masks(e.getKey()))));
+        }
+        return r;
+    }
+
+    // ширина примитивов метода: long > int > short > byte, double > float; прочие типы — 0
+    private static int precision(Main.MethodInfo mi) {
+        int r = 0;
+        for (String t : ClassFileReader.parameterTypes(mi.descriptor)) {
+            switch (t) {
+                case "J":
+                case "D":
+                case "Ljava/lang/Long;":
+                    r += 4;
+                    break;
+                case "I":
+                case "F":
+                    r += 3;
+                    break;
+                case "S":
+                    r += 2;
+                    break;
+                case "B":
+                    r += 1;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return r;
+    }
+
+    static String name(Main.MethodInfo mi) {
+        return mi.signature.substring(0, mi.signature.indexOf('('));
+    }
+
+    /**
+     * План выбора перегрузки: по одному Arity на каждое число аргументов, по возрастанию.
+     */
+    static List<Arity> plan(List<Main.MethodInfo> group) {
+        TreeMap<Integer, Arity> byCount = new TreeMap<>();
+        for (Main.MethodInfo mi : group) {
+            int[] m = masks(mi);
+            Arity a = byCount.computeIfAbsent(m.length, Arity::new);
+            a.candidates.add(mi);
+            a.masks.add(m);
+        }
+        for (Arity a : byCount.values()) {
+            order(a);
+            for (int p = 0; p < a.count; p++) {
+                for (int[] m : a.masks) {
+                    if (m[p] != a.masks.get(0)[p]) {
+                        a.positions.add(p);
+                        break;
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(byCount.values());
+    }
+
+    // узкие перегрузки раньше широких; при равенстве — порядок объявления (одинаковых масок нет, см. shadowed)
+    private static void order(Arity a) {
+        List<Integer> idx = new ArrayList<>();
+        for (int i = 0; i < a.candidates.size(); i++) {
+            idx.add(i);
+        }
+        Collections.sort(idx, Comparator.comparingInt(i -> width(a.masks.get(i))));
+        List<Main.MethodInfo> candidates = new ArrayList<>();
+        List<int[]> masks = new ArrayList<>();
+        for (int i : idx) {
+            candidates.add(a.candidates.get(i));
+            masks.add(a.masks.get(i));
+        }
+        a.candidates.clear();
+        a.candidates.addAll(candidates);
+        a.masks.clear();
+        a.masks.addAll(masks);
+    }
+
+    private static int width(int[] masks) {
+        int w = 0;
+        for (int m : masks) {
+            w += Integer.bitCount(m);
+        }
+        return w;
+    }
+
+    /**
+     * Маски параметров метода, которые приходят из PHP (Environment пропускается).
+     */
+    static int[] masks(Main.MethodInfo mi) {
+        List<Integer> r = new ArrayList<>();
+        for (String t : ClassFileReader.parameterTypes(mi.descriptor)) {
+            if (!Main.isEnvironment(t)) {
+                r.add(mask(t));
+            }
+        }
+        int[] a = new int[r.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = r.get(i);
+        }
+        return a;
+    }
+
+    /**
+     * Какие значения PHP подходят параметру типа t. null подходит любому объектному типу.
+     */
+    static int mask(String t) {
+        switch (t) {
+            case "Z": return BOOL;
+            case "J":
+            case "I":
+            case "S":
+            case "B":
+                return INT;
+            case "D":
+            case "F":
+                return INT | DOUBLE;
+            case "C": return STRING;
+            case "Ljava/lang/Boolean;": return NULL | BOOL;
+            case "Ljava/lang/Integer;":
+            case "Ljava/lang/Long;":
+                return NULL | INT;
+            case "Ljava/lang/Double;":
+            case "Ljava/lang/Number;":
+                return NULL | INT | DOUBLE;
+            case "Ljava/lang/String;":
+            case "Ljava/lang/CharSequence;":
+                return NULL | STRING;
+            case "Ljava/lang/Object;":
+            case Marshalling.MEMORY_D:
+                return ANY;
+        }
+        // PHP-массив подходит только типам, в которые его переводит Marshal
+        if (Marshalling.acceptsArray(t)) {
+            return NULL | ARRAY;
+        }
+        return NULL | OBJECT;
+    }
+
+    /**
+     * Условие Java-исходника для масок checks: (k0 & 0x14) != 0 && ...; "" — без условия.
+     */
+    static String condition(List<Integer> positions, int[] checks) {
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < checks.length; p++) {
+            if (checks[p] == ANY) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(" && ");
+            }
+            sb.append("(k").append(positions.get(p)).append(" & 0x")
+                    .append(Integer.toHexString(checks[p])).append(") != 0");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Список допустимых чисел аргументов для сообщения об ошибке: "1, 2".
+     */
+    static String counts(List<Arity> plan) {
+        StringBuilder sb = new StringBuilder();
+        for (Arity a : plan) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(a.count);
+        }
+        return sb.toString();
+    }
+}
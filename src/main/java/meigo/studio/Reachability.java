@@ -0,0 +1,216 @@
+package meigo.studio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Отсечение недостижимых классов (--entry): заглушки и обёртки пишутся только для классов,
+ * до которых можно дойти из точек входа по типам совместимых методов.
+ *
+ * Точки входа — файл, один шаблон на строку (# — комментарий):
+ *   com.example.Api             — класс целиком (шаблоны — как в CONVERT_IGNORE: *, **)
+ *   com.example.Api#parse       — только метод parse (все перегрузки) и конструкторы класса
+ *
+ * От каждого оставленного метода граф идёт по типам параметров (массивы — по типу элемента)
+ * к классам этой же библиотеки: чтобы передать такой объект, PHP создаёт его через __construct
+ * обёртки, поэтому класс остаётся целиком — вместе со всеми наследниками из библиотеки
+ * (подойдёт любой). Результаты в граф не входят: Marshal возвращает в PHP значения
+ * (строки, числа, массивы), а не объекты обёрток. Классы JDK и других библиотек не входят.
+ */
+final class Reachability {
+    private Reachability() {
+    }
+
+    /** Точки входа: шаблоны классов и отдельные методы */
+    static final class Entries {
+        final ClassFilter.Trie classes = new ClassFilter.Trie();
+        /** класс -> имена методов */
+        final Map<String, Set<String>> methods = new LinkedHashMap<>();
+
+        static Entries load(File file) throws IOException {
+            Entries e = new Entries();
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8))) {
+                for (String line = r.readLine(); line != null; line = r.readLine()) {
+                    // '#' отделяет метод, поэтому комментарий — '#' в начале строки или после пробела
+                    String text = stripComment(line).trim();
+                    if (text.isEmpty()) {
+                        continue;
+                    }
+                    int hash = text.indexOf('#');
+                    if (hash < 0) {
+                        e.classes.add(text);
+                    } else {
+                        e.methods.computeIfAbsent(text.substring(0, hash).trim(), k -> new LinkedHashSet<>())
+                                .add(text.substring(hash + 1).trim());
+                    }
+                }
+            }
+            return e;
+        }
+
+        private static String stripComment(String line) {
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == '#' && (i == 0 || Character.isWhitespace(line.charAt(i - 1)))) {
+                    return line.substring(0, i);
+                }
+            }
+            return line;
+        }
+    }
+
+    /** Что осталось после отсечения */
+    static final class Result {
+        // класс -> имена оставленных методов; null — класс целиком
+        private final Map<String, Set<String>> kept = new LinkedHashMap<>();
+
+        boolean keepsClass(String className) {
+            return kept.containsKey(className);
+        }
+
+        /** true, если класс остался целиком (его тексты можно брать из кеша и класть в кеш) */
+        boolean keepsWhole(String className) {
+            return kept.containsKey(className) && kept.get(className) == null;
+        }
+
+        boolean keeps(Main.MethodInfo mi) {
+            if (!kept.containsKey(mi.className)) {
+                return false;
+            }
+            Set<String> names = kept.get(mi.className);
+            return names == null || names.contains(Overloads.name(mi));
+        }
+
+        int size() {
+            return kept.size();
+        }
+    }
+
+    /**
+     * Обходит граф от точек входа по результатам анализа одной библиотеки.
+     */
+    static Result reachable(List<Main.ClassResult> results, Entries entries, ClassIndex index) {
+        Walk w = new Walk();
+        // 1) Классы с совместимыми методами и прямые наследники каждого типа библиотеки
+        for (Main.ClassResult r : results) {
+            if (r.skipped || r.error != null) {
+                continue;
+            }
+            w.library.add(r.className);
+            if (!r.methods.isEmpty()) {
+                w.byName.put(r.className, r);
+            }
+            for (String sup : index.supertypes(r.className.replace('.', '/'))) {
+                w.subclasses.computeIfAbsent(sup.replace('/', '.'), k -> new ArrayList<>()).add(r.className);
+            }
+        }
+
+        // 2) Точки входа: классы по шаблонам целиком, методы — по именам
+        for (Main.ClassResult r : w.byName.values()) {
+            if (entries.classes.matches(r.className.split("\\."))) {
+                w.reach(r.className);
+            }
+        }
+        for (Map.Entry<String, Set<String>> e : entries.methods.entrySet()) {
+            Main.ClassResult r = w.byName.get(e.getKey());
+            if (r == null || w.result.keepsWhole(r.className)) {
+                continue;
+            }
+            Set<String> names = new LinkedHashSet<>(e.getValue());
+            names.add(Main.CONSTRUCTOR);
+            Set<String> old = w.result.kept.get(r.className);
+            if (old != null) {
+                names.addAll(old);
+            }
+            w.result.kept.put(r.className, names);
+        }
+
+        // 3) Обход: от каждого оставленного метода — к типам его параметров
+        List<Main.MethodInfo> partial = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> e : w.result.kept.entrySet()) {
+            if (e.getValue() != null) {
+                for (Main.MethodInfo mi : w.byName.get(e.getKey()).methods) {
+                    if (e.getValue().contains(Overloads.name(mi))) {
+                        partial.add(mi);
+                    }
+                }
+            }
+        }
+        for (Main.MethodInfo mi : partial) {
+            w.follow(mi);
+        }
+        while (!w.queue.isEmpty()) {
+            for (Main.MethodInfo mi : w.byName.get(w.queue.poll()).methods) {
+                w.follow(mi);
+            }
+        }
+        return w.result;
+    }
+
+    // состояние одного обхода
+    private static final class Walk {
+        final Result result = new Result();
+        final Deque<String> queue = new ArrayDeque<>();
+        final Set<String> library = new HashSet<>();                  // все классы библиотеки
+        final Map<String, Main.ClassResult> byName = new HashMap<>();  // с совместимыми методами
+        final Map<String, List<String>> subclasses = new HashMap<>();
+        final Set<String> expanded = new HashSet<>();                 // типы, чьи наследники уже взяты
+
+        void follow(Main.MethodInfo mi) {
+            for (String t : ClassFileReader.parameterTypes(mi.descriptor)) {
+                String type = className(t);
+                if (type != null && library.contains(type)) {
+                    // параметр типа Base: подойдёт любой наследник из библиотеки
+                    Deque<String> pending = new ArrayDeque<>();
+                    pending.add(type);
+                    while (!pending.isEmpty()) {
+                        String cur = pending.poll();
+                        if (!expanded.add(cur)) {
+                            continue;
+                        }
+                        reach(cur);
+                        List<String> subs = subclasses.get(cur);
+                        if (subs != null) {
+                            pending.addAll(subs);
+                        }
+                    }
+                }
+            }
+        }
+
+        // класс остаётся целиком; в очередь — только при первом попадании
+        void reach(String className) {
+            if (!byName.containsKey(className) || result.keepsWhole(className)) {
+                return;
+            }
+            result.kept.put(className, null);
+            queue.add(className);
+        }
+    }
+
+    // Lcom/example/Foo; и [[Lcom/example/Foo; -> com.example.Foo; примитивы -> null
+    private static String className(String t) {
+        int dims = 0;
+        while (t.charAt(dims) == '[') {
+            dims++;
+        }
+        if (t.charAt(dims) != 'L') {
+            return null;
+        }
+        return t.substring(dims + 1, t.length() - 1).replace('/', '.');
+    }
+}
@@ -0,0 +1,173 @@
+package meigo.studio;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Потоковый режим (--stream): чтение -> анализ -> запись PHP/Java без общего SUMMARY.
+ *
+ * Поток чтения достаёт байты классов по порядку и отдаёт их пулу анализа (--threads),
+ * складывая Future в ограниченную очередь. Запись забирает Future из очереди в том же порядке
+ * и сразу пишет заглушку и обёртку класса. Когда запись не успевает, очередь заполняется
+ * и чтение останавливается — в памяти одновременно не больше --stream=N классов.
+ *
+ * Результат (sdk/ и tmp/ или .dnbundle) совпадает с обычным режимом; в логе нет итогового
+ * списка SUMMARY, так как для него пришлось бы держать все методы до конца.
+ */
+final class StreamingConverter {
+    // маркер конца очереди
+    private static final Future<Main.ClassResult> END = CompletableFuture.completedFuture(null);
+
+    private StreamingConverter() {
+    }
+
+    static void convert(final JarReader jar, final ClassIndex index, BundleOutput output,
+                        Options options, PrintStream out, Metrics metrics) throws IOException {
+        PrintStream detail = options.quiet ? Metrics.SILENT : out;
+        long phase = System.nanoTime();
+        final List<String> classNames = Main.listClassNames(jar, options.filter, metrics);
+        metrics.phase("enumerate", phase);
+        // фазы идут одновременно: анализ считается суммой по классам во всех потоках
+        final AtomicLong analyzeNanos = new AtomicLong();
+        final ConversionCache cache = options.cache;
+        final BlockingQueue<Future<Main.ClassResult>> inFlight = new ArrayBlockingQueue<>(options.streamWindow);
+        final ExecutorService workers = Executors.newFixedThreadPool(options.threads, r -> {
+            Thread t = new Thread(r, "jtj-analyze");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // 1) Чтение: байты классов по порядку -> пул анализа -> очередь
+        Thread scanner = new Thread(() -> {
+            try {
+                for (final String clsName : classNames) {
+                    Future<Main.ClassResult> f;
+                    if (clsName.contains("$")) {
+                        f = CompletableFuture.completedFuture(Main.ClassResult.skipped(clsName));
+                    } else {
+                        byte[] read;
+                        try {
+                            read = readEntry(jar, clsName);
+                        } catch (IOException e) {
+                            // повреждённая запись портит только свой класс, как в обычном режиме
+                            Main.ClassResult r = new Main.ClassResult(clsName);
+                            r.error = e.getMessage();
+                            inFlight.put(CompletableFuture.completedFuture(r));
+                            continue;
+                        }
+                        final byte[] bytes = read;
+                        f = workers.submit(() -> {
+                            long started = System.nanoTime();
+                            Main.ClassResult r = Main.analyzeClass(index, clsName, bytes, cache);
+                            analyzeNanos.addAndGet(System.nanoTime() - started);
+                            return r;
+                        });
+                    }
+                    inFlight.put(f);
+                }
+            } catch (InterruptedException e) {
+                // запись уже завершилась и END не ждёт
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                // запись получит ошибку из очереди, а не будет ждать END вечно
+                CompletableFuture<Main.ClassResult> failed = new CompletableFuture<>();
+                failed.completeExceptionally(t);
+                putQuietly(inFlight, failed);
+            } finally {
+                if (!Thread.currentThread().isInterrupted()) {
+                    putQuietly(inFlight, END);
+                }
+            }
+        }, "jtj-scan");
+        scanner.setDaemon(true);
+        scanner.start();
+
+        // 2) Запись: по мере готовности, строго в порядке classNames
+        List<String> emitted = new ArrayList<>();
+        int totalMethods = 0;
+        int compatibleMethods = 0;
+        int hits = 0;
+        int analyzed = 0;
+        try {
+            for (Future<Main.ClassResult> f = inFlight.take(); f != END; f = inFlight.take()) {
+                Main.ClassResult r = f.get();
+                Main.printClassResult(r, detail);
+                metrics.classResult(r);
+                if (r.skipped) {
+                    continue;
+                }
+                analyzed++;
+                totalMethods += r.declaredMethods;
+                compatibleMethods += r.methods.size();
+
+                String php = null;
+                String java = null;
+                if (!r.methods.isEmpty()) {
+                    phase = System.nanoTime();
+                    php = Main.writePhpStub(r.className, r.methods,
+                            r.cached != null ? r.cached.phpStub : null, options.batchCalls, options.bytecode,
+                            output, detail);
+                    metrics.phase("php", phase);
+                    phase = System.nanoTime();
+                    if (options.bytecode) {
+                        BytecodeWrappers.writeWrapper(r.className, r.methods, options.batchCalls, output, detail);
+                    } else {
+                        java = Main.writeJavaWrapper(r.className, r.methods,
+                                r.cached != null ? r.cached.javaWrapper : null, options.batchCalls, output, detail);
+                    }
+                    metrics.phase("java", phase);
+                    emitted.add(r.className);
+                }
+                if (r.cached != null) {
+                    hits++;
+                } else if (cache != null && r.cacheKey != null && r.error == null) {
+                    cache.put(r.cacheKey, new ConversionCache.Entry(r.declaredMethods, r.methods, r.listTypes, php, java));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("конвертация прервана", e);
+        } catch (ExecutionException e) {
+            throw new IOException("ошибка анализа", e.getCause());
+        } finally {
+            scanner.interrupt();
+            workers.shutdownNow();
+        }
+
+        // 3) Marshal и Extension-класс — им нужны только имена классов
+        phase = System.nanoTime();
+        Main.finishWrappers(emitted, options, output, detail);
+        metrics.phase("java", phase);
+        metrics.phaseNanos("analyze", analyzeNanos.get());
+        metrics.convertedClasses = emitted.size();
+        metrics.compatibleMethods = compatibleMethods;
+
+        Main.printStats(compatibleMethods, emitted.size(), classNames.size(), totalMethods, out);
+        if (cache != null) {
+            out.println("CACHE HITS: " + hits + " / " + analyzed);
+        }
+    }
+
+    private static byte[] readEntry(JarReader jar, String clsName) throws IOException {
+        return jar.read(clsName.replace('.', '/') + ".class");
+    }
+
+    private static void putQuietly(BlockingQueue<Future<Main.ClassResult>> queue, Future<Main.ClassResult> f) {
+        try {
+            queue.put(f);
+        } catch (InterruptedException e) {
+            // запись уже завершилась; флаг остаётся, чтобы не ждать места в очереди ещё раз
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package meigo.studio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Компилирует сгенерированные обёртки прямо в процессе (--compile).
+ *
+ * Оборачивает BundleOutput: исходники по-прежнему пишутся в него, но и запоминаются.
+ * В finish() все исходники бандла компилируются одной задачей javax.tools.JavaCompiler
+ * через JavaFileManager в памяти — ни отдельного процесса javac, ни чтения исходников с диска.
+ * Готовые .class уходят в тот же BundleOutput. Ошибки печатаются рядом с методом обёртки,
+ * из-за которого они возникли, после чего finish() бросает IOException с числом ошибок.
+ *
+ * В потоковом режиме (chunk > 0) исходники не копятся до конца: каждые chunk обёрток
+ * компилируются сразу, вместе с исходниками Marshal и Holder, на которые они ссылаются (их
+ * классы пишутся один раз, в finish()). Extension в finish() компилируется против заглушек
+ * уже скомпилированных обёрток — в памяти остаются только их пути.
+ */
+final class WrapperCompiler implements BundleOutput {
+    private final BundleOutput delegate;
+    private final List<File> classpath;
+    private final PrintStream out;
+    private final int chunk;
+    // путь исходника (JTJ/com/example/Foo.java) -> текст
+    private final Map<String, String> sources = new LinkedHashMap<>();
+    // потоковый режим: пути уже скомпилированных обёрток (для заглушек в finish) и число классов
+    private final List<String> compiled = new ArrayList<>();
+    private int classes;
+
+    /**
+     * classpath — целевая библиотека и jphp-runtime (плюс остальные jar в пакетном режиме);
+     * chunk — сколько обёрток компилировать за раз, 0 — все в finish().
+     */
+    WrapperCompiler(BundleOutput delegate, List<File> classpath, PrintStream out, int chunk) {
+        this.delegate  = delegate;
+        this.classpath = classpath;
+        this.out       = out;
+        this.chunk     = chunk;
+    }
+
+    @Override
+    public String writePhp(String path, String text) throws IOException {
+        return delegate.writePhp(path, text);
+    }
+
+    @Override
+    public synchronized String writeSource(String path, String text) throws IOException {
+        sources.put(path, text);
+        String written = delegate.writeSource(path, text);
+        if (chunk > 0 && isWrapper(path) && sources.size() >= chunk) {
+            compileWrappers();
+        }
+        return written;
+    }
+
+    @Override
+    public String writeClass(String path, byte[] bytes) throws IOException {
+        return delegate.writeClass(path, bytes);
+    }
+
+    @Override
+    public synchronized void finish(String extensionClass) throws IOException {
+        List<SourceFile> units = new ArrayList<>();
+        if (chunk > 0) {
+            // в sources остались последние обёртки, runtime и Extension; остальные — заглушками
+            for (String path : compiled) {
+                units.add(new SourceFile(path, stub(path), false));
+            }
+        }
+        for (Map.Entry<String, String> e : sources.entrySet()) {
+            units.add(new SourceFile(e.getKey(), e.getValue(), true));
+        }
+        sources.clear();
+        compile(units);
+        out.println("Compiled wrappers: " + classes + " classes");
+        delegate.finish(extensionClass);
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    // потоковый режим: накопленные обёртки вместе с исходниками Marshal и Holder, классы которых
+    // не пишутся — их запишет finish()
+    private void compileWrappers() throws IOException {
+        List<SourceFile> units = new ArrayList<>(sources.size() + 2);
+        units.add(new SourceFile(Marshalling.CLASS + ".java", Marshalling.source(), false));
+        units.add(new SourceFile(Marshalling.HOLDER + ".java", Marshalling.holderSource(), false));
+        for (Map.Entry<String, String> e : sources.entrySet()) {
+            units.add(new SourceFile(e.getKey(), e.getValue(), true));
+            compiled.add(e.getKey());
+        }
+        sources.clear();
+        compile(units);
+    }
+
+    private static boolean isWrapper(String path) {
+        return !path.startsWith("JTJ/runtime/") && !path.startsWith("JTJ/register/");
+    }
+
+    // заглушка обёртки для компиляции Extension: registerClass нужен только сам класс
+    private static String stub(String path) {
+        String name = path.substring(0, path.length() - ".java".length());
+        int slash = name.lastIndexOf('/');
+        return "package " + name.substring(0, slash).replace('/', '.') + ";\n"
+                + "public class " + name.substring(slash + 1) + " {}\n";
+    }
+
+    private void compile(List<SourceFile> units) throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IOException("--compile требует JDK: javax.tools.JavaCompiler недоступен");
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager std = javac.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8);
+        std.setLocation(StandardLocation.CLASS_PATH, classpath);
+
+        List<String> opts = new ArrayList<>(Arrays.asList("-proc:none", "-nowarn", "-encoding", "UTF-8"));
+        // обёртки должны грузиться в JPHP на Java 8
+        if (javac.isSupportedOption("--release") >= 0) {
+            opts.addAll(Arrays.asList("--release", "8"));
+        } else {
+            opts.addAll(Arrays.asList("-source", "8", "-target", "8"));
+        }
+
+        MemoryFileManager fm = new MemoryFileManager(std);
+        boolean ok;
+        try {
+            ok = javac.getTask(null, fm, diagnostics, opts, null, units).call();
+        } finally {
+            fm.close();
+        }
+
+        int errors = 0;
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+            if (d.getKind() != Diagnostic.Kind.ERROR) {
+                continue;
+            }
+            errors++;
+            out.println("  COMPILE ERROR " + where(d) + ": " + d.getMessage(Locale.ROOT));
+        }
+        if (!ok) {
+            // без классов обёрток бандл не рабочий: finish() бандла не вызывается, запуск завершается ошибкой
+            out.flush();
+            throw new IOException("Компиляция обёрток не удалась: " + errors + " ошибок, классы не записаны");
+        }
+        for (Map.Entry<String, ClassFile> e : fm.classes.entrySet()) {
+            delegate.writeClass(e.getKey().replace('.', '/') + ".class", e.getValue().bytes.toByteArray());
+            classes++;
+        }
+    }
+
+    /**
+     * Где ошибка: исходный Java-класс и метод обёртки (ближайшее объявление выше строки ошибки).
+     */
+    private static String where(Diagnostic<? extends JavaFileObject> d) {
+        if (!(d.getSource() instanceof SourceFile)) {
+            return "(classpath)";
+        }
+        SourceFile src = (SourceFile) d.getSource();
+        String original = src.path.replaceAll("^JTJ/", "").replaceAll("\\.java$", "").replace('/', '.');
+        String[] lines = src.text.split("\n", -1);
+        for (int i = (int) Math.min(d.getLineNumber(), lines.length) - 1; i >= 0; i--) {
+            String line = lines[i].trim();
+            int paren = line.indexOf('(');
+            if (line.startsWith("public ") && paren > 0 && !line.contains(" class ")) {
+                String[] head = line.substring(0, paren).trim().split("\\s+");
+                return original + "." + head[head.length - 1] + " (line " + d.getLineNumber() + ")";
+            }
+        }
+        return original + " (line " + d.getLineNumber() + ")";
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject {
+        final String path;
+        final String text;
+        final boolean emit;   // писать ли классы этого исходника в бандл
+
+        SourceFile(String path, String text, boolean emit) {
+            super(URI.create("string:///" + path), Kind.SOURCE);
+            this.path = path;
+            this.text = text;
+            this.emit = emit;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return text;
+        }
+    }
+
+    private static final class ClassFile extends SimpleJavaFileObject {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String className) {
+            super(URI.create("mem:///" + className.replace('.', '/') + ".class"), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+    }
+
+    /** Классы, которые выдаёт javac, остаются в памяти; классы заглушек и повторов runtime отбрасываются */
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        final Map<String, ClassFile> classes = new TreeMap<>();
+
+        MemoryFileManager(StandardJavaFileManager std) {
+            super(std);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            ClassFile f = new ClassFile(className);
+            if (!(sibling instanceof SourceFile) || ((SourceFile) sibling).emit) {
+                classes.put(className, f);
+            }
+            return f;
+        }
+    }
+}